@@ -6,9 +6,12 @@ public class Constants {
     private Constants () {};
 
     public final static String HFM_SUFFIX = ".hfm";
-    public final static boolean FILE_BIT = true;
-    public final static boolean DIR_BIT = false;
-    public final static boolean EMPTY_BIT = true;
+    public final static int HFM_MAGIC = 0x48464d1a;     // "HFM" followed by a control character
+    public final static byte HFM_VERSION = 8;
+    public final static byte FILE_TAG = 1;
+    public final static byte DIR_TAG = 2;
+    public final static byte SHARED_FILE_TAG = 3;   // a file that later links have the content of
+    public final static byte LINK_TAG = 4;          // a file with the content of a shared file
 
     public final static HashSet<String> IGNORE_SET = new HashSet<>();
 
@@ -16,6 +19,19 @@ public class Constants {
         IGNORE_SET.add(".DS_Store");
     }
 
+    // Daemon
+    public final static byte OP_COMPRESS = 1;
+    public final static byte OP_EXPAND = 2;
+    public final static byte OP_STATS = 3;
+
+    public final static byte STATUS_OK = 0;
+    public final static byte STATUS_BUSY = 1;
+    public final static byte STATUS_ERROR = 2;
+
+    public final static int DAEMON_PORT = 7463;
+    public final static int DAEMON_MAX_IN_FLIGHT = 256;
+    public final static int DAEMON_MAX_PAYLOAD = 1 << 30;
+
     // GUI
     public final static String TITLE = "Huffman";
 
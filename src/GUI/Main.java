@@ -2,6 +2,8 @@ package GUI;
 
 import Constant.Constants;
 import Kernel.API;
+import Kernel.Manifest;
+import Kernel.Options;
 import Util.BinaryOut;
 
 import javafx.animation.PathTransition;
@@ -244,13 +246,14 @@ public class Main extends Application {
                 BinaryOut binaryOut = new BinaryOut(output);
 
                 long startTime = System.currentTimeMillis();
-                API.compress(src, binaryOut);
+                Manifest manifest = Manifest.scan(src);
+                API.compress(manifest, binaryOut, new Options());
                 binaryOut.close();
                 long endTime = System.currentTimeMillis();
                 long time = endTime - startTime;
 
                 long newSize = output.length();
-                Double ratio = ((double) newSize / getDirLength(src)) * 100;
+                Double ratio = ((double) newSize / manifest.getLength()) * 100;
                 DecimalFormat df = new DecimalFormat( "0.00");
                 String ratioStr = df.format(ratio) + "%";
 
@@ -299,24 +302,6 @@ public class Main extends Application {
         });
     }
 
-    // get the total length of all the files in given directory
-    private long getDirLength(File file) {
-        if(file.isFile()) {
-            return file.length();
-        } else if (file.isDirectory()) {
-            long length = 0;
-            File[] list = file.listFiles();
-            if (null == list)
-                return 0;
-            for (File content : list) {
-                length += getDirLength(content);
-            }
-            return length;
-        } else {
-            throw new RuntimeException("Unknown file type");
-        }
-    }
-
     public static void main(String[] args) {
         launch(args);
     }
@@ -4,97 +4,261 @@ import Util.BinaryIn;
 import Util.BinaryOut;
 import Constant.Constants;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 
 public class API {
+    // bytes of the archive head and of the fixed fields of an entry head, its checksum included
+    private static final int ARCHIVE_HEAD_BYTES = Integer.BYTES + Byte.BYTES;
+    private static final int ENTRY_HEAD_BYTES = Byte.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    // far more than any file system allows, so that a damaged name length fails before it is allocated
+    static final int MAX_NAME_BYTES = 1 << 16;
+
+    // tree main generates when it is given none
+    private static final int FIXTURE_DIRS = 20;
+    private static final int FIXTURE_FILES = 100;
+    private static final int FIXTURE_FILE_BYTES = 2048;
+
+    // An archive is the magic number and the format version followed by one entry.
+    // Each entry starts with a tag byte and its name (int length and UTF-8 bytes), then
+    //   file:      long length, and the Kernel.Huffman payload if the length is not 0
+    //   directory: long number of children, and the children entries
+    //   shared:    a file as above that later links have the content of
+    //   link:      long length, and the long position of the shared file among the shared files so far
+    // The fields up to here, the payload and the children aside, are followed by their int CRC32C.
+    // The payloads share a Kernel.TableCache, so a payload may refer to the code table of an earlier one.
+    // Each block of a payload carries the CRC32C of its original bytes, and the whole payload ends with
+    // the CRC32C of all of them.
+    // The entry is followed by a Kernel.SeekIndex of the files, which ends the archive.
+    // Archives of the first release, which start with the entry itself, are read by Kernel.LegacyArchive.
     public static void compress(File src, BinaryOut binaryOut) {
+        compress(src, binaryOut, new Options());
+    }
+
+    // the tree is scanned on as many threads as the options ask workers for
+    public static void compress(File src, BinaryOut binaryOut, Options options) {
         if (null == src)
             throw new IllegalArgumentException("Null source file for compress");
+        if (null == options)
+            throw new IllegalArgumentException("Null options for compress");
 
-        if (src.isFile()) {
-            // compress single file
-            compressFile(src, binaryOut);
-        } else if (src.isDirectory()) {
+        compress(Manifest.scan(src, options.getWorkers()), binaryOut, options);
+    }
+
+    // compress the tree of a manifest scanned before, whose sizes the caller may report on
+    public static void compress(Manifest manifest, BinaryOut binaryOut, Options options) {
+        if (null == manifest)
+            throw new IllegalArgumentException("Null manifest for compress");
+        if (null == options)
+            throw new IllegalArgumentException("Null options for compress");
+
+        Manifest.Entry src = manifest.getRoot();
+        if (options.isDeduplicating())
+            manifest.findDuplicates(options.getWorkers());
+
+        SeekIndex index = new SeekIndex(binaryOut.size());
+        writeArchiveHead(binaryOut);
+        try (TableCache tables = new TableCache(options.getCachedTables(), options.getTablePenalty())) {
+            if (options.getWorkers() == 0) {
+                compressEntry(src, src.getName(), binaryOut, options, null, tables, index);
+            } else {
+                // share one engine among all the files, none if its blocks do not fit in the memory budget
+                try (BlockEngine engine = BlockEngine.open(options.getWorkers())) {
+                    compressEntry(src, src.getName(), binaryOut, options, engine, tables, index);
+                }
+            }
+        }
+        index.write(binaryOut);
+    }
+
+    private static void writeArchiveHead(BinaryOut binaryOut) {
+        binaryOut.write(Constants.HFM_MAGIC);
+        binaryOut.write(Constants.HFM_VERSION);
+    }
+
+    // path is the one of the entry in the archive, its names joined by '/' from the root on
+    private static void compressEntry(Manifest.Entry src, String path, BinaryOut binaryOut, Options options,
+                                      BlockEngine engine, TableCache tables, SeekIndex index) {
+        if (src.isDirectory()) {
             // compress directory
-            compressDir(src, binaryOut);
-        } else
-            throw new RuntimeException("Unknown kind of source");
+            compressDir(src, path, binaryOut, options, engine, tables, index);
+        } else {
+            // compress single file
+            compressFile(src, path, binaryOut, options, engine, tables, index);
+        }
     }
 
-    private static void compressFile(File file, BinaryOut binaryOut) {
-        assert file.isFile();
+    private static void compressFile(Manifest.Entry file, String path, BinaryOut binaryOut, Options options,
+                                     BlockEngine engine, TableCache tables, SeekIndex index) {
+        assert !file.isDirectory();
 
+        // a copy of an earlier file only refers to it, and is found where it is
         String fileName = file.getName();
-        boolean isEmptyFile = (file.length() == 0);
+        if (options.isDeduplicating() && file.getOriginal() != null) {
+            writeHead(Constants.LINK_TAG, fileName, file.getLength(), file.getOriginal().getShared(), binaryOut);
+            index.link(path, file.getOriginal());
+            return;
+        }
+
+        // the length written is the one of the file as it is read now, not as it was scanned
+        try (FileChannel channel = FileChannel.open(file.getPath())) {
+            long length = channel.size();
 
-        // write file info
-        writeFileHead(fileName, isEmptyFile, binaryOut);
+            // write file info
+            boolean shared = options.isDeduplicating() && file.getShared() >= 0;
+            writeHead(shared ? Constants.SHARED_FILE_TAG : Constants.FILE_TAG, fileName, length, -1, binaryOut);
 
-        // only compress non-empty file
-        if (!isEmptyFile) {
-            BinaryIn binaryIn = new BinaryIn(file);
-            Huffman.compress(binaryIn, binaryOut);
+            SeekIndex.Record record = index.add(path, file, length, options.checkpointBlocks());
+
+            // only compress non-empty file
+            if (length != 0) {
+                record.offset = binaryOut.size();
+                Huffman.compress(channel, binaryOut, options, engine, tables, record);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + fileName, e);
         }
     }
 
-    private static void writeFileHead(String fileName, boolean isEmptyFile, BinaryOut binaryOut) {
-        // to signal file header
-        binaryOut.write(Constants.FILE_BIT);
+    // write the tag, the name and the length shared by all entries, the position of the shared file
+    // for a link, and the checksum of them
+    private static void writeHead(byte tag, String name, long length, long shared, BinaryOut binaryOut) {
+        binaryOut.write(tag);
 
-        // write in file name info
-        byte[] bytes = fileName.getBytes();
+        // write in name info
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
         binaryOut.write(bytes.length);
         binaryOut.write(bytes);
 
-        // to signal whether its empty
-        binaryOut.write(isEmptyFile);
+        binaryOut.write(length);
+        if (tag == Constants.LINK_TAG)
+            binaryOut.write(shared);
+        binaryOut.write(headChecksum(tag, bytes, length, shared));
+    }
+
+    private static int headChecksum(byte tag, byte[] name, long length, long shared) {
+        ByteBuffer head = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + name.length + 2 * Long.BYTES);
+        head.put(tag).putInt(name.length).put(name).putLong(length);
+        if (tag == Constants.LINK_TAG)
+            head.putLong(shared);
+        head.flip();
+        return Huffman.checksum(head);
     }
 
-    private static void compressDir(File dir, BinaryOut binaryOut) {
+    private static void compressDir(Manifest.Entry dir, String path, BinaryOut binaryOut, Options options,
+                                    BlockEngine engine, TableCache tables, SeekIndex index) {
         assert dir.isDirectory();
 
-        File[] files = dir.listFiles();
+        // unwanted files are already left out of the manifest
+        writeHead(Constants.DIR_TAG, dir.getName(), dir.getChildren().size(), -1, binaryOut);
 
-        if (null == files)
-            throw new RuntimeException("Null file list of dir");
+        // compress each content respectively
+        for (Manifest.Entry file : dir.getChildren()) {
+            compressEntry(file, path + "/" + file.getName(), binaryOut, options, engine, tables, index);
+        }
+    }
+
+    public static Estimate estimate(File src) {
+        return estimate(src, new Options());
+    }
+
+    // size of the archive compress would write, worked out from the frequency pass alone: files are sampled
+    // when the options sample and counted on the engine when they ask for workers, each file is estimated
+    // with a code table of its own and the static coder, and the size of the root includes the archive head
+    public static Estimate estimate(File src, Options options) {
+        if (null == src)
+            throw new IllegalArgumentException("Null source file for estimate");
+        if (null == options)
+            throw new IllegalArgumentException("Null options for estimate");
+
+        return estimate(Manifest.scan(src, options.getWorkers()), options);
+    }
+
+    public static Estimate estimate(Manifest manifest, Options options) {
+        if (null == manifest)
+            throw new IllegalArgumentException("Null manifest for estimate");
+        if (null == options)
+            throw new IllegalArgumentException("Null options for estimate");
+
+        Manifest.Entry src = manifest.getRoot();
+        if (options.isDeduplicating())
+            manifest.findDuplicates(options.getWorkers());
 
-        ArrayList<File> list = new ArrayList<>();
-        for (File file : files) {
-            // ignore unwanted files
-            if (Constants.IGNORE_SET.contains(file.getName()))
-                continue;
-            list.add(file);
+        Estimate root;
+        if (options.getWorkers() == 0) {
+            root = estimateEntry(src, options, null);
+        } else {
+            try (BlockEngine engine = BlockEngine.open(options.getWorkers())) {
+                root = estimateEntry(src, options, engine);
+            }
         }
-        int length = list.size();
+        long indexBytes = SeekIndex.headBytes() + indexBytes(src, src.getName(), options);
+        return new Estimate(root.getName(), root.getLength(), ARCHIVE_HEAD_BYTES + root.getSize() + indexBytes,
+                root.isExact(), root.getChildren());
+    }
 
-        writeDirHead(dir.getName(), length, binaryOut);
+    // bytes of the records of the files below the entry in the seek index
+    private static long indexBytes(Manifest.Entry src, String path, Options options) {
+        if (!src.isDirectory())
+            return SeekIndex.recordBytes(path, SeekIndex.checkpoints(src.getLength(), options));
 
-        // compress each content respectively
-        for (File file : list) {
-            compress(file, binaryOut);
+        long bytes = 0;
+        for (Manifest.Entry file : src.getChildren()) {
+            bytes += indexBytes(file, path + "/" + file.getName(), options);
         }
+        return bytes;
     }
 
-    private static void writeDirHead(String dirName, int length, BinaryOut binaryOut) {
-        // to signal the directory header
-        binaryOut.write(Constants.DIR_BIT);
+    private static Estimate estimateEntry(Manifest.Entry src, Options options, BlockEngine engine) {
+        String name = src.getName();
+        long head = ENTRY_HEAD_BYTES + name.getBytes(StandardCharsets.UTF_8).length;
 
-        // write in directory name info
-        byte[] bytes = dirName.getBytes();
-        binaryOut.write(bytes.length);
-        binaryOut.write(bytes);
+        if (options.isDeduplicating() && src.getOriginal() != null)
+            return new Estimate(name, src.getLength(), head + Long.BYTES, true, Collections.emptyList());
 
-        if (length == 0) {
-            binaryOut.write(Constants.EMPTY_BIT);      // true for empty directory
-        } else {
-            binaryOut.write(!Constants.EMPTY_BIT);     // false for non-empty directory
-            binaryOut.write(length);
+        if (!src.isDirectory()) {
+            try (FileChannel channel = FileChannel.open(src.getPath())) {
+                long length = channel.size();
+                long size = head + (length == 0 ? 0 : Huffman.estimate(channel, options, engine));
+                return new Estimate(name, length, size, !options.samples(length), Collections.emptyList());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read file: " + name, e);
+            }
         }
+
+        ArrayList<Estimate> children = new ArrayList<>();
+        long length = 0;
+        long size = head;
+        boolean exact = true;
+        for (Manifest.Entry file : src.getChildren()) {
+            Estimate child = estimateEntry(file, options, engine);
+            children.add(child);
+            length += child.getLength();
+            size += child.getSize();
+            exact &= child.isExact();
+        }
+        return new Estimate(name, length, size, exact, children);
     }
 
     public static void expand(File file) {
+        expand(file, 0);
+    }
+
+    // expand with the given number of decoding threads, 0 expands on the calling thread
+    public static void expand(File file, int workers) {
         if (null == file)
             throw new IllegalArgumentException("Null source file for expand");
 
@@ -105,80 +269,277 @@ public class API {
             throw new RuntimeException("Unsupported file suffix");
 
         File parent = new File(file.getAbsoluteFile().getParent());
-        expand(parent, new BinaryIn(file));
+        if (workers < 0)
+            throw new IllegalArgumentException("Illegal number of workers: " + workers);
+
+        BinaryIn binaryIn = new BinaryIn(file);
+        try (BlockEngine engine = workers == 0 ? null : BlockEngine.open(workers);
+             TableCache tables = new TableCache(TableCache.MAX_TABLES, 0)) {
+            if (LegacyArchive.detect(file)) {
+                LegacyArchive.expand(parent, binaryIn);
+                return;
+            }
+            readArchiveHead(binaryIn);
+            expand(parent, binaryIn, engine, tables, new ArrayList<>());
+        } finally {
+            binaryIn.close();
+        }
     }
 
-    private static void expand(File parent, BinaryIn binaryIn) {
-        if (binaryIn.readBoolean() == Constants.FILE_BIT) {
-            // expand single file
-            expandFile(parent, binaryIn);
-        } else {
-            // expand directory
+    public static long verify(File file) {
+        return verify(file, 0);
+    }
 
-            // get name info
-            int nameLength = binaryIn.readInt();
-            byte[] bytes = new byte[nameLength];
-            for (int i = 0; i < nameLength; ++i) {
-                bytes[i] = binaryIn.readByte();
+    // decode every payload of an archive and check it against its checksums without writing anything,
+    // blocks are decoded on the given number of threads, 0 decodes on the calling thread,
+    // return the number of bytes the archive expands to
+    public static long verify(File file, int workers) {
+        if (null == file)
+            throw new IllegalArgumentException("Null source file for verify");
+        if (workers < 0)
+            throw new IllegalArgumentException("Illegal number of workers: " + workers);
+
+        BinaryIn binaryIn = new BinaryIn(file);
+        try (BlockEngine engine = workers == 0 ? null : BlockEngine.open(workers);
+             TableCache tables = new TableCache(TableCache.MAX_TABLES, 0)) {
+            // an archive of the first release has no checksums, so it can only be decoded
+            if (LegacyArchive.detect(file))
+                return LegacyArchive.expand(null, binaryIn);
+
+            readArchiveHead(binaryIn);
+            long length = expand(null, binaryIn, engine, tables, new ArrayList<>());
+
+            // the index and its offset end the archive
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            while (!binaryIn.isEmpty()) {
+                rest.write(binaryIn.readByte());
             }
+            ByteBuffer tail = ByteBuffer.wrap(rest.toByteArray());
+            if (tail.remaining() < Long.BYTES
+                    || tail.getLong(tail.limit() - Long.BYTES) != file.length() - tail.remaining())
+                throw new IllegalStateException("Illegal index offset");
+            tail.limit(tail.limit() - Long.BYTES);
+            SeekIndex.read(tail);
+            return length;
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Corrupt archive: " + file.getName() + ": " + e.getMessage(), e);
+        } finally {
+            binaryIn.close();
+        }
+    }
+
+    static void readArchiveHead(BinaryIn binaryIn) {
+        if (binaryIn.isEmpty() || binaryIn.readInt() != Constants.HFM_MAGIC)
+            throw new RuntimeException("Not a Huffman archive");
 
-            // deal with chinese
-            String dirName = new String(bytes, StandardCharsets.UTF_8);
+        byte version = binaryIn.readByte();
+        if (version != Constants.HFM_VERSION)
+            throw new RuntimeException("Unsupported archive version: " + version);
+    }
 
-            File dir = new File(parent, dirName);
-            if (!dir.mkdirs()) {
-                throw new RuntimeException("Failed to make dir: " + dirName);
+    // shared holds the expanded files that links may copy, a null parent only verifies the entry,
+    // return the number of bytes it expands to
+    private static long expand(File parent, BinaryIn binaryIn, BlockEngine engine, TableCache tables,
+                               ArrayList<File> shared) {
+        byte tag = binaryIn.readByte();
+        byte[] bytes = readName(binaryIn);
+        long length = binaryIn.readLong();
+        long index = tag == Constants.LINK_TAG ? binaryIn.readLong() : -1;
+        if (binaryIn.readInt() != headChecksum(tag, bytes, length, index))
+            throw new IllegalStateException("Entry head checksum mismatch");
+
+        // deal with chinese
+        String name = new String(bytes, StandardCharsets.UTF_8);
+
+        if (tag == Constants.FILE_TAG || tag == Constants.SHARED_FILE_TAG) {
+            // expand single file
+            File file = null;
+            if (parent == null) {
+                verifyFile(name, length, binaryIn, engine, tables);
+            } else {
+                file = new File(parent, name);
+                expandFile(file, length, binaryIn, engine, tables);
+            }
+            if (tag == Constants.SHARED_FILE_TAG)
+                shared.add(file);
+            return length;
+        } else if (tag == Constants.LINK_TAG) {
+            // copy the bytes a shared file expanded to
+            if (index < 0 || index >= shared.size())
+                throw new RuntimeException("Link to unknown shared file: " + index);
+            if (parent == null)
+                return length;
+            File file = new File(parent, name);
+            try {
+                Files.copy(shared.get((int) index).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create file: " + name, e);
+            }
+            return length;
+        } else if (tag == Constants.DIR_TAG) {
+            // expand directory
+            File dir = parent == null ? null : new File(parent, name);
+            if (dir != null && !dir.mkdirs()) {
+                throw new RuntimeException("Failed to make dir: " + name);
             }
 
-            if (binaryIn.readBoolean() != Constants.EMPTY_BIT) {
-                // expand each content respectively
-                int length = binaryIn.readInt();
-                for (int i = 0; i < length; ++i) {
-                    expand(dir, binaryIn);
-                }
+            // expand each content respectively
+            long total = 0;
+            for (long i = 0; i < length; ++i) {
+                total += expand(dir, binaryIn, engine, tables, shared);
             }
-        }
+            return total;
+        } else
+            throw new RuntimeException("Unknown entry tag: " + tag);
     }
 
-    private static void expandFile(File parent, BinaryIn binaryIn) {
-        // get name info
+    static byte[] readName(BinaryIn binaryIn) {
         int nameLength = binaryIn.readInt();
+        if (nameLength < 0 || nameLength > MAX_NAME_BYTES)
+            throw new RuntimeException("Illegal name length: " + nameLength);
+
         byte[] bytes = new byte[nameLength];
         for (int i = 0; i < nameLength; ++i) {
             bytes[i] = binaryIn.readByte();
         }
+        return bytes;
+    }
 
-        // deal with chinese file name
-        String fileName = new String(bytes, StandardCharsets.UTF_8);
-        BinaryOut binaryOut = new BinaryOut(new File(parent, fileName));
+    private static void expandFile(File file, long length, BinaryIn binaryIn, BlockEngine engine,
+                                   TableCache tables) {
+        // write through the buffer of this thread instead of allocating one per file
+        BinaryOut binaryOut;
+        try {
+            binaryOut = new BinaryOut(FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                    CodecContext.get().writeBuffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create file: " + file.getName(), e);
+        }
 
-        if (binaryIn.readBoolean() != Constants.EMPTY_BIT) {
-            Huffman.expand(binaryIn, binaryOut);
+        if (length != 0) {
+            checkLength(length, Huffman.expand(binaryIn, binaryOut, engine, tables));
         }
 
         binaryOut.close();
     }
 
-    public static void main(String[] args) {
-        long startTime, endTime;
-        File src;
-        BinaryOut binaryOut;
+    // the payload of a file has to expand to the length in its head
+    private static void checkLength(long length, long expanded) {
+        if (expanded != length)
+            throw new IllegalStateException("Payload expands to " + expanded + " bytes instead of " + length);
+    }
+
+    // decode a payload into a sink that drops its bytes, so that only its checksums are checked
+    private static void verifyFile(String name, long length, BinaryIn binaryIn, BlockEngine engine,
+                                   TableCache tables) {
+        if (length == 0)
+            return;
+
+        BinaryOut binaryOut = new BinaryOut(new Discard(), CodecContext.get().writeBuffer);
+        try {
+            checkLength(length, Huffman.expand(binaryIn, binaryOut, engine, tables));
+            binaryOut.flush();
+        } catch (RuntimeException e) {
+            throw new RuntimeException(name + ": " + e.getMessage(), e);
+        }
+    }
+
+    // channel that drops whatever is written to it
+    static final class Discard implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
 
-        src = new File("test/TestCases");
-        binaryOut = new BinaryOut("test.hfm");
+        @Override
+        public void close() { }
+    }
+
+    // bytes allocated by the current thread so far, -1 if the JVM can not tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    // many small files in a few directories, where the cost per file shows most
+    private static File writeFixture(File dir) throws IOException {
+        Random random = new Random(42);
+        String[] words = {"huffman ", "archive ", "block ", "table ", "the ", "of ", "\n"};
+        for (int d = 0; d < FIXTURE_DIRS; ++d) {
+            File sub = new File(dir, "dir-" + d);
+            if (!sub.mkdirs())
+                throw new RuntimeException("Failed to make dir: " + sub.getName());
+            for (int f = 0; f < FIXTURE_FILES; ++f) {
+                StringBuilder text = new StringBuilder();
+                int length = random.nextInt(FIXTURE_FILE_BYTES);
+                while (text.length() < length) {
+                    text.append(words[random.nextInt(words.length)]);
+                }
+                Files.write(new File(sub, "file-" + f + ".txt").toPath(),
+                        text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (!file.delete())
+            throw new RuntimeException("Failed to delete: " + file.getName());
+    }
+
+    // round trip the tree given as argument, or a generated one, through archives in a temporary directory
+    public static void main(String[] args) throws IOException {
+        long startTime, endTime, startAlloc, endAlloc;
+        File work = Files.createTempDirectory("hfm").toFile();
+        File src = args.length > 0 ? new File(args[0]) : writeFixture(new File(work, "fixture"));
+
+        // the archive expands next to itself, so it goes in a directory of its own
+        File out = new File(work, "out");
+        if (!out.mkdirs())
+            throw new RuntimeException("Failed to make dir: " + out.getName());
+        File archive = new File(out, src.getName() + Constants.HFM_SUFFIX);
+        BinaryOut binaryOut = new BinaryOut(archive);
 
         startTime =  System.currentTimeMillis();
+        startAlloc = allocatedBytes();
         compress(src, binaryOut);
+        endAlloc = allocatedBytes();
         endTime =  System.currentTimeMillis();
         System.out.println ("compress time: " + (endTime-startTime) + "ms");
+        System.out.println ("compress allocation: " + (endAlloc-startAlloc) + " bytes");
 
         binaryOut.close();
+        System.out.println ("archive: " + archive.length() + " bytes");
 
-        src = new File("test.hfm");
+        startTime =  System.currentTimeMillis();
+        long verified = verify(archive);
+        endTime =  System.currentTimeMillis();
+        System.out.println ("verify time: " + (endTime-startTime) + "ms for " + verified + " bytes");
 
         startTime =  System.currentTimeMillis();
-        expand(src);
+        startAlloc = allocatedBytes();
+        expand(archive);
+        endAlloc = allocatedBytes();
         endTime =  System.currentTimeMillis();
         System.out.println ("expand time: " + (endTime-startTime) + "ms");
+        System.out.println ("expand allocation: " + (endAlloc-startAlloc) + " bytes");
+
+        delete(work);
     }
 }
@@ -0,0 +1,183 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import static Kernel.Huffman.ADAPTIVE_CODER;
+import static Kernel.Huffman.R;
+
+// Kernel.Huffman coding of a stream in one pass: each block is coded with a table built from the blocks before it,
+// and the decoder rebuilds the same table after each block, so no trie is written and no length is known ahead
+final class AdaptiveHuffman {
+    // the model halves its counts past this total, so that its tables follow a changing stream
+    private static final long MAX_MODEL_TOTAL = 1 << 20;
+
+    // Do not instantiate
+    private AdaptiveHuffman() { }
+
+    // a block is coded and flushed as soon as the interval is full or the stream has no more bytes available,
+    // blocks are flushed through to the output stream unless it is null
+    static void compress(InputStream inputStream, BinaryOut binaryOut, Options options,
+                         OutputStream outputStream) throws IOException {
+        CodecContext ctx = CodecContext.get();
+        Pipeline pipeline = options.getPipeline();
+        int interval = options.getInterval() > 0 ? options.getInterval() : Options.DEFAULT_INTERVAL;
+
+        pipeline.write(binaryOut);
+        binaryOut.write(ADAPTIVE_CODER);
+
+        CodeTable model = startModel(ctx);
+        CRC32C content = new CRC32C();
+        byte[] block = new byte[interval];
+        int filled = 0;
+        while (true) {
+            int count = inputStream.read(block, filled, interval - filled);
+            if (count > 0)
+                filled += count;
+            if (filled > 0 && (count < 0 || filled == interval || inputStream.available() == 0)) {
+                ByteBuffer data = ByteBuffer.wrap(block, 0, filled);
+                int crc = Huffman.checksum(data, content);
+                encodeBlock(model, pipeline.forward(ctx, data), crc, binaryOut);
+                if (outputStream != null) {
+                    binaryOut.flush();
+                    outputStream.flush();
+                }
+                filled = 0;
+            }
+            if (count < 0)
+                break;
+        }
+
+        binaryOut.write(0);
+        binaryOut.write((int) content.getValue());
+        if (outputStream != null) {
+            binaryOut.flush();
+            outputStream.flush();
+        }
+    }
+
+    // model at the start of a payload: every byte once
+    static CodeTable startModel(CodecContext ctx) {
+        CodeTable model = ctx.literals;
+        Arrays.fill(model.freq, 1);
+        model.build();
+        return model;
+    }
+
+    // add the symbols of a block to the model and rebuild its table, encoder and decoder do this in lockstep
+    private static void updateModel(CodeTable model, ByteBuffer symbols) {
+        Huffman.count(model.freq, symbols);
+        long total = 0;
+        for (long f : model.freq) total += f;
+        if (total > MAX_MODEL_TOTAL) {
+            for (int i = 0; i < R; ++i) model.freq[i] = (model.freq[i] + 1) >>> 1;
+        }
+        model.build();
+    }
+
+    // write one block in the frame of the static coder, then learn it
+    static void encodeBlock(CodeTable model, ByteBuffer block, int crc, BinaryOut binaryOut) {
+        ByteBuffer symbols = block.duplicate();
+        Huffman.encodeBlock(model, block, crc, binaryOut);
+        updateModel(model, symbols);
+    }
+
+    // decode a block and transform it back, the model learns the block on the way
+    private static ByteBuffer expandBlock(CodecContext ctx, Pipeline pipeline, CodeTable model, int symbols,
+                                          BinaryIn binaryIn) {
+        byte[] data = ctx.bytes(0, pipeline.capacity());
+        Huffman.decodeBlock(model, data, symbols, binaryIn);
+        updateModel(model, ByteBuffer.wrap(data, 0, symbols));
+        return pipeline.inverse(ctx, data, symbols);
+    }
+
+    // expand the blocks of a payload whose stages and coder are read already, up to an empty one,
+    // return the number of bytes expanded
+    static long expand(BinaryIn binaryIn, BinaryOut binaryOut, Pipeline pipeline) {
+        CodecContext ctx = CodecContext.get();
+        CRC32C content = new CRC32C();
+        CodeTable model = startModel(ctx);
+        long length = 0;
+        for (int symbols; (symbols = binaryIn.readInt()) != 0; ) {
+            if (symbols < 0 || symbols > pipeline.capacity())
+                throw new IllegalStateException("Illegal block size: " + symbols);
+            binaryIn.readInt();
+            int crc = binaryIn.readInt();
+            ByteBuffer block = expandBlock(ctx, pipeline, model, symbols, binaryIn);
+            Huffman.checkBlock(block, crc);
+            content.update(block.duplicate());
+            length += block.remaining();
+            binaryOut.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        }
+        Huffman.checkPayload(content, binaryIn.readInt());
+        return length;
+    }
+
+    // each block is written and flushed as soon as its last byte is in, so output follows input without waiting
+    static void expand(InputStream inputStream, OutputStream outputStream) throws IOException {
+        CodecContext ctx = CodecContext.get();
+        DataInputStream in = new DataInputStream(inputStream);
+
+        // stages and coder, read byte by byte as the blocks are read past the reach of a Util.BinaryIn
+        int count = in.readByte();
+        if (count < 0)
+            throw new IllegalStateException("Illegal number of stages: " + count);
+        byte[] head = new byte[1 + count];
+        head[0] = (byte) count;
+        in.readFully(head, 1, count);
+        Pipeline pipeline = Pipeline.read(new BinaryIn(ByteBuffer.wrap(head)));
+
+        byte coder = in.readByte();
+        if (coder != ADAPTIVE_CODER)
+            throw new IllegalStateException("Only adaptive payloads expand from a stream: " + coder);
+
+        CodeTable model = startModel(ctx);
+        CRC32C content = new CRC32C();
+        byte[] bytes = new byte[0];
+        for (int symbols; (symbols = in.readInt()) != 0; ) {
+            if (symbols < 0 || symbols > pipeline.capacity())
+                throw new IllegalStateException("Illegal block size: " + symbols);
+            int size = in.readInt();
+            if (size < 0)
+                throw new IllegalStateException("Illegal compressed block size: " + size);
+            int crc = in.readInt();
+
+            if (bytes.length < size)
+                bytes = new byte[size];
+            in.readFully(bytes, 0, size);
+            ByteBuffer block = expandBlock(ctx, pipeline, model, symbols, new BinaryIn(ByteBuffer.wrap(bytes, 0, size)));
+            Huffman.checkBlock(block, crc);
+            content.update(block.duplicate());
+            outputStream.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+            outputStream.flush();
+        }
+        Huffman.checkPayload(content, in.readInt());
+    }
+
+    // the bytes left in a Util.BinaryIn as a stream that always has the next one available
+    static final class BinaryInStream extends InputStream {
+        private final BinaryIn binaryIn;
+
+        BinaryInStream(BinaryIn binaryIn) {
+            this.binaryIn = binaryIn;
+        }
+
+        @Override
+        public int read() {
+            return binaryIn.isEmpty() ? -1 : binaryIn.readByte() & 0xff;
+        }
+
+        @Override
+        public int available() {
+            return binaryIn.isEmpty() ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package Kernel;
+
+import Util.BinaryIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static Kernel.Huffman.BLOCK_SIZE;
+
+// random reads of the files of an archive through its Kernel.SeekIndex: a read decodes the block the position
+// falls in, found from the nearest checkpoint before it by skipping the frames of the blocks in between,
+// so it costs the checkpoint interval instead of the whole file, the files of the adaptive coder are not seekable
+public class ArchiveReader implements AutoCloseable {
+    // enough for the stages, the coder, the table reference, the largest trie and the length of a payload
+    private static final int PAYLOAD_HEAD_BYTES = 1 << 10;
+    private static final int FRAME_BYTES = 3 * Integer.BYTES;
+
+    private final String name;
+    private final FileChannel channel;
+    private final SeekIndex index;
+
+    public ArchiveReader(File file) {
+        if (null == file)
+            throw new IllegalArgumentException("Null archive for read");
+
+        name = file.getName();
+        try {
+            channel = FileChannel.open(file.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open archive: " + name, e);
+        }
+        try {
+            API.readArchiveHead(new BinaryIn(readAt(0, Integer.BYTES + Byte.BYTES)));
+
+            // the offset of the index is the last thing in the archive
+            long end = channel.size() - Long.BYTES;
+            long start = readAt(end, Long.BYTES).getLong();
+            if (start < 0 || start > end || end - start > Integer.MAX_VALUE)
+                throw new IllegalStateException("Illegal index offset: " + start);
+            index = SeekIndex.read(readAt(start, (int) (end - start)));
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Failed to read archive: " + name, e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // paths of the files in archive order, their names joined by '/' from the root on
+    public List<String> getPaths() {
+        ArrayList<String> paths = new ArrayList<>();
+        for (String path : index.paths()) {
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    // read-only channel over the bytes of the file at the given path
+    public SeekableByteChannel newChannel(String path) {
+        SeekIndex.Record record = index.get(path);
+        if (null == record)
+            throw new IllegalArgumentException("No such file in archive: " + path);
+        return new EntryChannel(path, record);
+    }
+
+    // the bytes at the given offset, fewer if the archive ends before
+    private ByteBuffer readAt(long offset, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        readAt(offset, buffer);
+        return buffer;
+    }
+
+    private void readAt(long offset, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read archive: " + name, e);
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close archive: " + name, e);
+        }
+    }
+
+    private final class EntryChannel implements SeekableByteChannel {
+        private final SeekIndex.Record record;
+        private Pipeline pipeline;
+        private byte coder;
+        private CodeTable table;
+
+        private final ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        private ByteBuffer coded = ByteBuffer.allocate(0);
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private long loaded = -1;           // index of the block in block, -1 if none
+        private long loadedOffset;          // where that block starts in the archive
+        private int loadedLength;
+
+        private long position;
+        private boolean open = true;
+
+        EntryChannel(String path, SeekIndex.Record record) {
+            this.record = record;
+            if (record.length == 0)
+                return;
+
+            BinaryIn binaryIn = new BinaryIn(readAt(record.offset, PAYLOAD_HEAD_BYTES));
+            pipeline = Pipeline.read(binaryIn);
+            coder = binaryIn.readByte();
+            if (coder == Huffman.ADAPTIVE_CODER)
+                throw new IllegalStateException("File of the adaptive coder is not seekable: " + path);
+            if (coder != Huffman.STATIC_CODER && coder != Huffman.LZ77_CODER)
+                throw new IllegalStateException("Unknown coder: " + coder);
+            if (record.count == 0)
+                throw new IllegalStateException("File without checkpoints: " + path);
+
+            // the trie comes with the payload or with the one the cached table was written for
+            if (coder == Huffman.STATIC_CODER) {
+                table = new CodeTable(Huffman.R);
+                byte kind = binaryIn.readByte();
+                binaryIn.readByte();
+                if (kind == TableCache.CACHED_TABLE) {
+                    if (record.table < 0)
+                        throw new IllegalStateException("Cached table without origin: " + path);
+                    binaryIn = new BinaryIn(readAt(record.table + 2, PAYLOAD_HEAD_BYTES));
+                } else if (kind != TableCache.NEW_TABLE)
+                    throw new IllegalStateException("Unknown table reference: " + kind);
+                table.read(binaryIn);
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            if (position >= record.length)
+                return -1;
+
+            int total = 0;
+            while (dst.hasRemaining() && position < record.length) {
+                long index = position / BLOCK_SIZE;
+                if (index != loaded)
+                    load(index);
+                int offset = (int) (position - index * BLOCK_SIZE);
+                int count = Math.min(dst.remaining(), loadedLength - offset);
+                dst.put(block, offset, count);
+                position += count;
+                total += count;
+            }
+            return total;
+        }
+
+        // decode the block of the given index, walking the frames from the nearest checkpoint
+        // or from the block loaded last if that is closer
+        private void load(long index) {
+            int k = record.interval == 0 ? 0 : (int) Math.min(index / record.interval, record.count - 1);
+            long at = (long) k * record.interval;
+            long offset = record.checkpoints[k];
+            if (loaded >= at && loaded < index) {
+                at = loaded;
+                offset = loadedOffset;
+            }
+            for (; at < index; ++at) {
+                offset += FRAME_BYTES + readFrame(offset);
+            }
+
+            int size = readFrame(offset);
+            int symbols = frame.getInt(0);
+            if (symbols <= 0 || symbols > pipeline.capacity())
+                throw new IllegalStateException("Illegal block size: " + symbols);
+            if (coded.capacity() < size)
+                coded = ByteBuffer.allocate(size);
+            coded.clear().limit(size);
+            readAt(offset + FRAME_BYTES, coded);
+
+            int length = (int) Math.min(BLOCK_SIZE, record.length - index * BLOCK_SIZE);
+            ByteBuffer data = Huffman.expandBlock(CodecContext.get(), pipeline, coder, table, symbols,
+                    new BinaryIn(coded), length, frame.getInt(2 * Integer.BYTES));
+            data.get(block, 0, length);
+            loaded = index;
+            loadedOffset = offset;
+            loadedLength = length;
+        }
+
+        // read the frame of the block at the given offset, return the number of bytes after it
+        private int readFrame(long offset) {
+            frame.clear();
+            readAt(offset, frame);
+            if (frame.remaining() < FRAME_BYTES)
+                throw new IllegalStateException("Archive truncated: " + name);
+            int size = frame.getInt(Integer.BYTES);
+            if (size < 0)
+                throw new IllegalStateException("Illegal compressed block size: " + size);
+            return size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            if (newPosition < 0)
+                throw new IllegalArgumentException("Illegal position: " + newPosition);
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            return record.length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    // print length bytes from the given position of a file of an archive
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("usage: ArchiveReader <archive> <path> <position> <length>");
+            return;
+        }
+
+        try (ArchiveReader reader = new ArchiveReader(new File(args[0]));
+             SeekableByteChannel channel = reader.newChannel(args[1])) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.parseInt(args[3]));
+            long startTime = System.nanoTime();
+            channel.position(Long.parseLong(args[2]));
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) { }
+            long time = System.nanoTime() - startTime;
+
+            buffer.flip();
+            System.out.println(StandardCharsets.UTF_8.decode(buffer));
+            System.out.println("read " + buffer.limit() + " bytes in " + time / 1000 + "us");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package Kernel;
+
+import Util.BinaryOut;
+import Util.RingBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Kernel.Huffman.BLOCK_SIZE;
+
+// three-stage engine for the blocks of a payload: a reader thread fills blocks, worker threads code them
+// and a writer thread drains them in order, the stages pass blocks through lock-free ring buffers
+final class BlockEngine implements AutoCloseable {
+    // heap a block takes with its input, output and counts, reserved from the Kernel.MemoryBudget
+    // along with the codec context of each worker
+    private static final long BLOCK_MEMORY = 3L * BLOCK_SIZE;
+
+    // a block on its way through the stages, reused for later blocks
+    static final class Block {
+        long index;                 // position of the block in the payload
+        int symbols;                // number of coded symbols, when expanding
+        int crc;                    // checksum of the original bytes
+        ByteBuffer data;            // bytes to code, in input or elsewhere
+        private ByteBuffer input = ByteBuffer.allocate(BLOCK_SIZE);
+        final Output output = new Output();
+        final BinaryOut binaryOut = new BinaryOut(output);
+        final long[] freq = new long[Huffman.R];
+
+        // the input buffer cleared and able to take the given number of bytes
+        ByteBuffer input(int capacity) {
+            if (input.capacity() < capacity)
+                input = ByteBuffer.allocate(capacity);
+            input.clear();
+            return input;
+        }
+    }
+
+    // coded bytes of a block
+    static final class Output extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    interface Stage {
+        void accept(Block block) throws IOException;
+    }
+
+    // threads of all engines, kept from one engine to the next so that their codec contexts stay warm,
+    // the stages of an engine wait on each other, so every stage gets a thread of its own instead of a queue
+    private static final ExecutorService POOL = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            5, TimeUnit.MINUTES, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "huffman-block-engine");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final int workers;
+    private final Block[] blocks;
+    private final MemoryBudget.Reservation reservation;
+
+    private volatile Throwable failure;
+
+    private BlockEngine(int workers, MemoryBudget.Reservation reservation) {
+        this.workers = workers;
+        this.reservation = reservation;
+
+        blocks = new Block[blocks(workers)];
+        for (int i = 0; i < blocks.length; ++i) {
+            blocks[i] = new Block();
+        }
+    }
+
+    // enough blocks in flight to keep every stage busy
+    private static int blocks(int workers) {
+        return 2 * workers + 2;
+    }
+
+    // an engine with the given number of workers if its blocks fit in the memory budget right now,
+    // null otherwise, so that the caller codes on its own thread instead
+    static BlockEngine open(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Illegal number of workers: " + workers);
+
+        MemoryBudget.Reservation reservation =
+                MemoryBudget.global().tryReserve(blocks(workers) * BLOCK_MEMORY + workers * CodecContext.bytes());
+        if (reservation == null)
+            return null;
+        return new BlockEngine(workers, reservation);
+    }
+
+    // push count blocks through the stages, return when all of them are drained
+    void run(long count, Stage reader, Stage worker, Stage writer) {
+        RingBuffer<Block> free = new RingBuffer<>(blocks.length);
+        RingBuffer<Block> filled = new RingBuffer<>(blocks.length);
+        RingBuffer<Block> coded = new RingBuffer<>(blocks.length);
+        for (Block block : blocks) {
+            free.offer(block);
+        }
+        failure = null;
+
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        futures.add(submit(() -> {
+            for (long i = 0; i < count; ++i) {
+                Block block = take(free);
+                block.index = i;
+                reader.accept(block);
+                put(filled, block);
+            }
+            return null;
+        }));
+
+        AtomicLong claimed = new AtomicLong();
+        for (int w = 0; w < workers; ++w) {
+            futures.add(submit(() -> {
+                while (claimed.getAndIncrement() < count) {
+                    Block block = take(filled);
+                    worker.accept(block);
+                    put(coded, block);
+                }
+                return null;
+            }));
+        }
+
+        futures.add(submit(() -> {
+            // workers finish out of order, park blocks until their turn comes,
+            // fewer blocks than pending slots are in flight so they never collide
+            Block[] pending = new Block[blocks.length];
+            for (long next = 0; next < count; ) {
+                Block block = take(coded);
+                pending[(int) (block.index % pending.length)] = block;
+
+                int slot = (int) (next % pending.length);
+                while (next < count && pending[slot] != null) {
+                    Block ready = pending[slot];
+                    pending[slot] = null;
+                    writer.accept(ready);
+                    put(free, ready);
+                    slot = (int) (++next % pending.length);
+                }
+            }
+            return null;
+        }));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable cause = failure;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        if (cause != null)
+            throw new RuntimeException("Block engine failed", cause);
+    }
+
+    // run a stage, a failure makes the other stages give up instead of waiting forever
+    private Future<?> submit(Callable<Void> stage) {
+        return POOL.submit(() -> {
+            try {
+                return stage.call();
+            } catch (Throwable t) {
+                fail(t);
+                throw t;
+            }
+        });
+    }
+
+    // remember the first failure, later ones are the other stages giving up
+    private synchronized void fail(Throwable cause) {
+        if (failure == null)
+            failure = cause;
+    }
+
+    private Block take(RingBuffer<Block> ring) {
+        Block block;
+        for (int attempts = 0; (block = ring.poll()) == null; ++attempts) {
+            abortOnFailure();
+            RingBuffer.idle(attempts);
+        }
+        return block;
+    }
+
+    private void put(RingBuffer<Block> ring, Block block) {
+        for (int attempts = 0; !ring.offer(block); ++attempts) {
+            abortOnFailure();
+            RingBuffer.idle(attempts);
+        }
+    }
+
+    private void abortOnFailure() {
+        if (failure != null)
+            throw new CancellationException("Another stage failed");
+    }
+
+    @Override
+    public void close() {
+        reservation.close();
+    }
+}
@@ -0,0 +1,129 @@
+package Kernel;
+
+import java.util.Arrays;
+
+import static Kernel.Huffman.R;
+
+// Burrows-Wheeler transform: the last column of the sorted rotations of the block,
+// preceded by the 4-byte index of the original block among the sorted rotations
+public class BlockSortStage implements Stage {
+    public static final byte ID = 3;
+
+    private static final int INDEX_BYTES = 4;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "BWT";
+    }
+
+    @Override
+    public int maxLength(int length) {
+        return length + INDEX_BYTES;
+    }
+
+    @Override
+    public int forward(byte[] src, int length, byte[] dst) {
+        if (length == 0) return 0;
+
+        int[] p = sortRotations(CodecContext.get(), src, length);
+
+        int primary = 0;
+        for (int i = 0; i < length; ++i) {
+            int start = p[i];
+            if (start == 0) primary = i;
+            dst[INDEX_BYTES + i] = src[start == 0 ? length - 1 : start - 1];
+        }
+        for (int k = 0; k < INDEX_BYTES; ++k) {
+            dst[k] = (byte) (primary >>> (8 * (INDEX_BYTES - 1 - k)));
+        }
+        return length + INDEX_BYTES;
+    }
+
+    // sort the cyclic rotations of src by prefix doubling with counting sorts,
+    // return the start positions of the rotations in sorted order
+    private static int[] sortRotations(CodecContext ctx, byte[] src, int n) {
+        int[] p = ctx.ints(0, n);
+        int[] c = ctx.ints(1, n);
+        int[] pn = ctx.ints(2, n);
+        int[] cn = ctx.ints(3, n);
+        int[] cnt = ctx.ints(4, Math.max(n, R));
+
+        // sort by the first byte
+        Arrays.fill(cnt, 0, R, 0);
+        for (int i = 0; i < n; ++i) ++cnt[src[i] & 0xff];
+        for (int i = 1; i < R; ++i) cnt[i] += cnt[i - 1];
+        for (int i = n - 1; i >= 0; --i) p[--cnt[src[i] & 0xff]] = i;
+        int classes = 1;
+        c[p[0]] = 0;
+        for (int i = 1; i < n; ++i) {
+            if (src[p[i]] != src[p[i - 1]]) ++classes;
+            c[p[i]] = classes - 1;
+        }
+
+        // sort by the first 2h bytes knowing the order by the first h bytes
+        for (int h = 1; h < n && classes < n; h <<= 1) {
+            for (int i = 0; i < n; ++i) {
+                int start = p[i] - h;
+                pn[i] = start < 0 ? start + n : start;
+            }
+            Arrays.fill(cnt, 0, classes, 0);
+            for (int i = 0; i < n; ++i) ++cnt[c[pn[i]]];
+            for (int i = 1; i < classes; ++i) cnt[i] += cnt[i - 1];
+            for (int i = n - 1; i >= 0; --i) p[--cnt[c[pn[i]]]] = pn[i];
+
+            classes = 1;
+            cn[p[0]] = 0;
+            for (int i = 1; i < n; ++i) {
+                int cur = p[i] + h, prev = p[i - 1] + h;
+                if (c[p[i]] != c[p[i - 1]] || c[cur >= n ? cur - n : cur] != c[prev >= n ? prev - n : prev])
+                    ++classes;
+                cn[p[i]] = classes - 1;
+            }
+            int[] tmp = c;
+            c = cn;
+            cn = tmp;
+        }
+        return p;
+    }
+
+    @Override
+    public int inverse(byte[] src, int length, byte[] dst) {
+        if (length == 0) return 0;
+        if (length < INDEX_BYTES)
+            throw new IllegalStateException("Block too short for BWT index");
+
+        int n = length - INDEX_BYTES;
+        int primary = 0;
+        for (int k = 0; k < INDEX_BYTES; ++k) {
+            primary = (primary << 8) | (src[k] & 0xff);
+        }
+        if (primary < 0 || primary >= Math.max(n, 1) || n > dst.length)
+            throw new IllegalStateException("Illegal BWT index: " + primary);
+
+        // rank of each byte of the last column among the equal bytes before it
+        int[] rank = CodecContext.get().ints(0, n);
+        int[] base = new int[R];
+        for (int i = 0; i < n; ++i) {
+            rank[i] = base[src[INDEX_BYTES + i] & 0xff]++;
+        }
+        for (int i = 0, sum = 0; i < R; ++i) {
+            int count = base[i];
+            base[i] = sum;
+            sum += count;
+        }
+
+        // walk the last-to-first mapping from the original rotation backwards
+        int index = primary;
+        for (int k = n - 1; k >= 0; --k) {
+            byte b = src[INDEX_BYTES + index];
+            dst[k] = b;
+            index = base[b & 0xff] + rank[index];
+        }
+        return n;
+    }
+}
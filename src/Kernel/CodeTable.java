@@ -0,0 +1,201 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.util.Arrays;
+
+// Kernel.Huffman trie and code table over an alphabet of the given size, reused for every block it codes
+final class CodeTable {
+    private final int size;          // alphabet size
+    private final int symbolBits;    // bits of a symbol written in the trie
+
+    // frequency counts of each symbol
+    final long[] freq;
+
+    // flattened trie: nodes [0, size) are the leaves of the symbols,
+    // nodes [size, 2 * size - 1) are the internal nodes in creation order
+    private final long[] weight;
+    private final int[] left;
+    private final int[] right;
+    private int root;
+    private int next;                // next free internal node
+    private int leaves;              // number of leaves in the trie
+
+    // min-heap of node indices used while building the trie
+    private final int[] heap;
+
+    // code table, code of symbol c is the lengths[c] low bits of codes[c]
+    private final long[] codes;
+    private final int[] lengths;
+
+    CodeTable(int size) {
+        this.size = size;
+        this.symbolBits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        freq = new long[size];
+        weight = new long[2 * size];
+        left = new int[2 * size];
+        right = new int[2 * size];
+        heap = new int[2 * size];
+        codes = new long[size];
+        lengths = new int[size];
+    }
+
+    // approximate heap bytes of a table over an alphabet of the given size
+    static long bytes(int size) {
+        return 60L * size;
+    }
+
+    void clearFreq() {
+        Arrays.fill(freq, 0);
+    }
+
+    // build the trie and the code table from the frequency counts
+    void build() {
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            weight[i] = freq[i];
+            lengths[i] = 0;
+            if (freq[i] > 0)
+                count = push(count, i);
+        }
+
+        // in case there are less than two symbols with a nonzero frequency
+        for (int i = 0; count < 2; ++i) {
+            if (freq[i] == 0)
+                count = push(count, i);
+        }
+        leaves = count;
+
+        // merge two smallest trees
+        next = size;
+        while (count > 1) {
+            int l = heap[0];
+            count = pop(count);
+            int r = heap[0];
+            count = pop(count);
+
+            left[next] = l;
+            right[next] = r;
+            weight[next] = weight[l] + weight[r];
+            count = push(count, next++);
+        }
+        root = heap[0];
+
+        buildCode(root, 0, 0);
+    }
+
+    // add node x to the min-heap of the given size, return the new size
+    private int push(int count, int x) {
+        int i = count;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (weight[heap[parent]] <= weight[x]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = x;
+        return count + 1;
+    }
+
+    // remove the smallest node from the min-heap of the given size, return the new size
+    private int pop(int count) {
+        int x = heap[--count];
+        int i = 0;
+        while (2 * i + 1 < count) {
+            int child = 2 * i + 1;
+            if (child + 1 < count && weight[heap[child + 1]] < weight[heap[child]]) ++child;
+            if (weight[x] <= weight[heap[child]]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+        return count;
+    }
+
+    // make a look-up table from symbols and their encodings
+    private void buildCode(int x, long code, int length) {
+        if (x >= size) {
+            if (length == 64)
+                throw new IllegalStateException("Code longer than 64 bits");
+            buildCode(left[x],  code << 1, length + 1);
+            buildCode(right[x], (code << 1) | 1, length + 1);
+        }
+        else {
+            codes[x] = code;
+            lengths[x] = length;
+        }
+    }
+
+    int length(int symbol) {
+        return lengths[symbol];
+    }
+
+    // number of bits the symbols of the given counts take, Long.MAX_VALUE if one of them has no code
+    long cost(long[] counts) {
+        long bits = 0;
+        for (int i = 0; i < size; ++i) {
+            if (counts[i] == 0) continue;
+            if (lengths[i] == 0) return Long.MAX_VALUE;
+            bits += counts[i] * lengths[i];
+        }
+        return bits;
+    }
+
+    // number of bits write takes
+    long trieBits() {
+        return (long) leaves * (1 + symbolBits) + (leaves - 1);
+    }
+
+    void write(BinaryOut binaryOut) {
+        writeTrie(binaryOut, root);
+    }
+
+    private void writeTrie(BinaryOut binaryOut, int x) {
+        if (x < size) {
+            binaryOut.write(true);
+            binaryOut.write(x, symbolBits);
+            return;
+        }
+        binaryOut.write(false);
+
+        writeTrie(binaryOut, left[x]);
+        writeTrie(binaryOut, right[x]);
+    }
+
+    void read(BinaryIn binaryIn) {
+        next = size;
+        root = readTrie(binaryIn);
+    }
+
+    private int readTrie(BinaryIn binaryIn) {
+        boolean isLeaf = binaryIn.readBoolean();
+        if (isLeaf) {
+            int symbol = binaryIn.readInt(symbolBits);
+            if (symbol >= size)
+                throw new IllegalStateException("Illegal symbol in trie: " + symbol);
+            return symbol;
+        }
+
+        if (next == 2 * size - 1)
+            throw new IllegalStateException("Malformed trie");
+        int x = next++;
+        left[x] = readTrie(binaryIn);
+        right[x] = readTrie(binaryIn);
+        return x;
+    }
+
+    void encode(int symbol, BinaryOut binaryOut) {
+        binaryOut.write(codes[symbol], lengths[symbol]);
+    }
+
+    int decode(BinaryIn binaryIn) {
+        int x = root;
+        while (x >= size) {
+            boolean bit = binaryIn.readBoolean();
+            if (bit) x = right[x];
+            else     x = left[x];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,56 @@
+package Kernel;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+import static Kernel.Huffman.BLOCK_SIZE;
+import static Kernel.Huffman.R;
+
+// per-thread scratch space of the codec, reused by every file and block the thread processes
+final class CodecContext {
+    private static final ThreadLocal<CodecContext> LOCAL = ThreadLocal.withInitial(CodecContext::new);
+
+    // code table of the bytes
+    final CodeTable literals = new CodeTable(R);
+
+    // code tables of the Kernel.LZ77 literal/length and distance symbols
+    final CodeTable lzLiterals = new CodeTable(LZ77.LITERALS);
+    final CodeTable lzDistances = new CodeTable(LZ77.DISTANCES);
+
+    // buffers for reading source blocks and writing expanded files
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+
+    // checksum of the blocks
+    final CRC32C checksum = new CRC32C();
+
+    // growable scratch arrays of the transform stages and Kernel.LZ77, by slot
+    private final byte[][] bytes = new byte[2][];
+    private final int[][] ints = new int[9][];
+
+    private CodecContext() { }
+
+    // bytes a context takes at most, once the transform stages and Kernel.LZ77 have grown its scratch arrays
+    // to the size of a block: the two buffers, the tables, two byte slots, eight int slots of a block
+    // and the hash heads of Kernel.LZ77
+    static long bytes() {
+        return 4L * BLOCK_SIZE + CodeTable.bytes(R) + CodeTable.bytes(LZ77.LITERALS) + CodeTable.bytes(LZ77.DISTANCES)
+                + 8L * Integer.BYTES * BLOCK_SIZE + ((long) Integer.BYTES << LZ77.HASH_BITS);
+    }
+
+    static CodecContext get() {
+        return LOCAL.get();
+    }
+
+    byte[] bytes(int slot, int capacity) {
+        if (bytes[slot] == null || bytes[slot].length < capacity)
+            bytes[slot] = new byte[capacity];
+        return bytes[slot];
+    }
+
+    int[] ints(int slot, int capacity) {
+        if (ints[slot] == null || ints[slot].length < capacity)
+            ints[slot] = new int[capacity];
+        return ints[slot];
+    }
+}
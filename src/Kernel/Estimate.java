@@ -0,0 +1,46 @@
+package Kernel;
+
+import java.util.Collections;
+import java.util.List;
+
+// compressed size of a file or directory worked out by Kernel.API.estimate, without writing an archive
+public class Estimate {
+    private final String name;
+    private final long length;                // bytes of the files
+    private final long size;                  // estimated bytes of the entry in the archive
+    private final boolean exact;              // every file was counted in full
+    private final List<Estimate> children;    // empty for a file
+
+    Estimate(String name, long length, long size, boolean exact, List<Estimate> children) {
+        this.name = name;
+        this.length = length;
+        this.size = size;
+        this.exact = exact;
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public List<Estimate> getChildren() {
+        return children;
+    }
+
+    // estimated compressed size over original size, 1 for an empty entry
+    public double getRatio() {
+        return length == 0 ? 1 : (double) size / length;
+    }
+}
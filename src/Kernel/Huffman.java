@@ -5,155 +5,655 @@ import Util.BinaryOut;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.util.PriorityQueue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
 
 public class Huffman {
     // alphabet size of extended ASCII
-    private static final int R = 256;
+    static final int R = 256;
+
+    // number of uncompressed bytes per block
+    static final int BLOCK_SIZE = 1 << 16;
+
+    // number of contiguous bytes read at each point of a strided sample
+    private static final int SAMPLE_CHUNK = 1 << 12;
+
+    // how the blocks of a payload are coded
+    static final byte STATIC_CODER = 0;     // one Kernel.Huffman table for the whole payload
+    static final byte LZ77_CODER = 1;       // Kernel.LZ77 matches with tables per block
+    static final byte ADAPTIVE_CODER = 2;   // tables rebuilt from the blocks so far, blocks up to an empty one
+    static final byte STORED_CODER = 3;     // the bytes as they are, for payloads that coding would not shrink
+
+    // no stages, the coder and the length in front of the bytes of a stored payload, and its checksum after them
+    private static final int STORED_EXTRA_BYTES = 14;
+
+    // payloads with fewer blocks are not worth handing over to a Kernel.BlockEngine
+    private static final int MIN_ENGINE_BLOCKS = 2;
 
     // Do not instantiate
     private Huffman() { }
 
-    // Kernel.Huffman trie node
-    private static class Node implements Comparable<Node> {
-        private final char ch;
-        private final int freq;
-        private final Node left;
-        private final Node right;
+    // uncompressed data the blocks are read from, once or twice depending on the coder
+    private interface Source {
+        long length();
+
+        // the size bytes at the given position, read into the buffer unless they are in memory already,
+        // only valid until the buffer is read into again
+        ByteBuffer read(long position, int size, ByteBuffer buffer) throws IOException;
+    }
 
-        Node(char ch, int freq, Node left, Node right) {
-            this.ch    = ch;
-            this.freq  = freq;
-            this.left  = left;
-            this.right = right;
+    public static void compress(BinaryIn binaryIn, BinaryOut binaryOut) {
+        compress(binaryIn, binaryOut, new Options());
+    }
+
+    // buffer the whole stream for exact frequency counts.
+    // Past the Kernel.MemoryBudget, the buffer and the rest of the stream go through the adaptive coder.
+    public static void compress(BinaryIn binaryIn, BinaryOut binaryOut, Options options) {
+        try (MemoryBudget.Reservation reservation = MemoryBudget.global().reserve(0)) {
+            // a growing buffer takes up to twice its bytes
+            Buffer data = new Buffer();
+            while (!binaryIn.isEmpty()) {
+                if (data.size() % BLOCK_SIZE == 0 && !reservation.tryGrow(2L * BLOCK_SIZE)) {
+                    AdaptiveHuffman.compress(new SequenceInputStream(new ByteArrayInputStream(data.array(), 0,
+                            data.size()), new AdaptiveHuffman.BinaryInStream(binaryIn)), binaryOut, options, null);
+                    return;
+                }
+                data.write(binaryIn.readByte());
+            }
+            compress(source(ByteBuffer.wrap(data.array(), 0, data.size())), binaryOut, options, true, null,
+                    new TableCache(0, 0), null);
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory source failed", e);
         }
+    }
 
-        private boolean isLeaf() {
-            assert ((left == null) && (right == null)) || ((left != null) && (right != null));
-            return (left == null) && (right == null);
+    // buffered stream whose bytes are read in place instead of copied out
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
         }
+    }
+
+    // the remaining bytes of the buffer, read in place
+    private static Source source(ByteBuffer buffer) {
+        ByteBuffer input = buffer.slice();
+        return new Source() {
+            @Override
+            public long length() {
+                return input.capacity();
+            }
 
-        // compare, based on frequency
-        @Override
-        public int compareTo(Node that) {
-            return this.freq - that.freq;
+            @Override
+            public ByteBuffer read(long position, int size, ByteBuffer buffer) {
+                ByteBuffer view = input.duplicate();
+                view.limit((int) position + size);
+                view.position((int) position);
+                return view;
+            }
+        };
+    }
+
+    // upper bound of the bytes compress writes for an input of the given length, whatever the options
+    public static int maxCompressedLength(int length) {
+        if (length < 0 || length > Integer.MAX_VALUE - STORED_EXTRA_BYTES)
+            throw new IllegalArgumentException("Illegal input length: " + length);
+        return STORED_EXTRA_BYTES + length;
+    }
+
+    public static int compress(ByteBuffer src, ByteBuffer dst) {
+        return compress(src, dst, new Options());
+    }
+
+    // compress the remaining bytes of src into dst in place, return the number of bytes written.
+    // Both positions move past the bytes used. Data that does not shrink is stored as it is,
+    // so maxCompressedLength bytes of dst are always enough.
+    public static int compress(ByteBuffer src, ByteBuffer dst, Options options) {
+        int length = src.remaining();
+        int start = dst.position();
+        int stored = maxCompressedLength(length);
+
+        // coding only goes on while it stays smaller than the stored payload
+        ByteBuffer coded = dst.duplicate();
+        coded.limit(start + Math.min(dst.remaining(), stored - 1));
+        BinaryOut binaryOut = new BinaryOut(coded);
+        try (BlockEngine engine = options.getWorkers() == 0 ? null : BlockEngine.open(options.getWorkers())) {
+            compress(source(src), binaryOut, options, true, engine, new TableCache(0, 0), null);
+            binaryOut.flush();
+            dst.position(coded.position());
+        } catch (BufferOverflowException e) {
+            if (dst.remaining() < stored)
+                throw new IllegalArgumentException("Destination too small for compress: " + dst.remaining());
+
+            binaryOut = new BinaryOut(dst);
+            Pipeline.NONE.write(binaryOut);
+            binaryOut.write(STORED_CODER);
+            binaryOut.write((long) length);
+            binaryOut.write(src.duplicate());
+            binaryOut.write(checksum(src));
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory source failed", e);
         }
+        src.position(src.limit());
+        return dst.position() - start;
     }
 
-    public static void compress(BinaryIn binaryIn, BinaryOut binaryOut) {
-        String data = binaryIn.readString();
-        char[] input = data.toCharArray();
+    public static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        return compress(src, srcOffset, length, dst, dstOffset, new Options());
+    }
 
-        // tabulate frequency counts
-        int[] freq = new int[R];
-        for (char c : input) ++freq[c];
+    // compress src[srcOffset, srcOffset + length) to dst from dstOffset on, return the number of bytes written
+    public static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, Options options) {
+        return compress(ByteBuffer.wrap(src, srcOffset, length),
+                ByteBuffer.wrap(dst, dstOffset, dst.length - dstOffset), options);
+    }
+
+    // one pass over a stream of unknown length with the adaptive coder, so output follows input without lookahead
+    public static void compress(InputStream inputStream, OutputStream outputStream, Options options) {
+        try {
+            AdaptiveHuffman.compress(inputStream, new BinaryOut(outputStream), options, outputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read stream for compress", e);
+        }
+    }
 
-        // build Kernel.Huffman trie
-        Node root = buildTrie(freq);
+    public static void compress(FileChannel channel, BinaryOut binaryOut) {
+        compress(channel, binaryOut, new Options());
+    }
+
+    public static void compress(FileChannel channel, BinaryOut binaryOut, Options options) {
+        if (options.getWorkers() == 0) {
+            compress(channel, binaryOut, options, null, new TableCache(0, 0), null);
+        } else {
+            try (BlockEngine engine = BlockEngine.open(options.getWorkers())) {
+                compress(channel, binaryOut, options, engine, new TableCache(0, 0), null);
+            }
+        }
+    }
 
-        // build code table
-        String[] st = new String[R];
-        buildCode(st, root, "");
+    // compress a file in one or two passes over its channel, never holding its content in memory.
+    // The frequency pass reads a sample unless the options ask for full counts.
+    // The record, unless null, gets the table and the checkpoint blocks.
+    static void compress(FileChannel channel, BinaryOut binaryOut, Options options, BlockEngine engine,
+                         TableCache tables, SeekIndex.Record record) {
+        try {
+            compress(source(channel), binaryOut, options, false, engine, tables, record);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read source for compress", e);
+        }
+    }
 
-        // write trie for decoder
-        writeTrie(binaryOut, root);
+    // estimated payload bytes of a file with the static coder and a table of its own, from the frequency pass.
+    // Exact up to block padding with full counts, extrapolated from the sample otherwise.
+    static long estimate(FileChannel channel, Options options, BlockEngine engine) {
+        try {
+            Source source = source(channel);
+            long length = source.length();
+            long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (blocks < MIN_ENGINE_BLOCKS)
+                engine = null;
+
+            CodecContext ctx = CodecContext.get();
+            CodeTable table = ctx.literals;
+            long counted = tabulate(ctx, source, options, false, engine);
+            table.build();
+
+            // the sample stands for the whole file
+            double bits = (double) table.cost(table.freq) * length / counted;
+
+            // payload head and trailer, then the frame and codes of each block
+            // with half a byte of padding on average
+            return options.getPipeline().headerBytes() + 3 + (table.trieBits() + 7) / 8 + 12
+                    + 12 * blocks + (long) Math.ceil(bits / 8 + blocks / 2.0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read source for estimate", e);
+        }
+    }
+
+    private static Source source(FileChannel channel) throws IOException {
+        long length = channel.size();
+        return new Source() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public ByteBuffer read(long position, int size, ByteBuffer buffer) throws IOException {
+                readBlock(channel, buffer, position, position + size);
+                return buffer;
+            }
+        };
+    }
+
+    private static void compress(Source source, BinaryOut binaryOut, Options options, boolean exact,
+                                 BlockEngine engine, TableCache tables, SeekIndex.Record record) throws IOException {
+        CodecContext ctx = CodecContext.get();
+        Pipeline pipeline = options.getPipeline();
+        long length = source.length();
+        long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blocks < MIN_ENGINE_BLOCKS)
+            engine = null;
+
+        // write stages for decoder
+        pipeline.write(binaryOut);
+        CRC32C content = new CRC32C();
+
+        if (options.getInterval() > 0) {
+            // each block depends on the ones before, so the engine can not help
+            binaryOut.write(ADAPTIVE_CODER);
+            CodeTable model = AdaptiveHuffman.startModel(ctx);
+            int interval = options.getInterval();
+            for (long position = 0; position < length; position += interval) {
+                int size = (int) Math.min(interval, length - position);
+                ByteBuffer data = source.read(position, size, ctx.readBuffer);
+                int crc = checksum(data, content);
+                AdaptiveHuffman.encodeBlock(model, pipeline.forward(ctx, data), crc, binaryOut);
+            }
+            binaryOut.write(0);
+            binaryOut.write((int) content.getValue());
+            return;
+        }
+
+        if (options.getLevel() > 0) {
+            binaryOut.write(LZ77_CODER);
+            binaryOut.write(length);
+
+            // each block carries its own tables, so a single pass is enough
+            int level = options.getLevel();
+            if (engine != null) {
+                engine.run(blocks, block -> read(source, block, length, content),
+                        block -> LZ77.encodeBlock(CodecContext.get(), level,
+                                pipeline.forward(CodecContext.get(), block.data), block.crc, block.binaryOut),
+                        block -> drain(block, binaryOut, record));
+            } else {
+                for (long position = 0; position < length; position += BLOCK_SIZE) {
+                    mark(record, position / BLOCK_SIZE, binaryOut);
+                    ByteBuffer data = source.read(position, blockSize(position, length), ctx.readBuffer);
+                    int crc = checksum(data, content);
+                    LZ77.encodeBlock(ctx, level, pipeline.forward(ctx, data), crc, binaryOut);
+                }
+            }
+            binaryOut.write((int) content.getValue());
+            return;
+        }
+
+        // tabulate frequency counts
+        tabulate(ctx, source, options, exact, engine);
+
+        binaryOut.write(STATIC_CODER);
+
+        // build Kernel.Huffman trie and code table or reuse a cached one, write the reference and trie for decoder
+        CodeTable table = tables.write(ctx.literals, binaryOut);
+        binaryOut.align();
+        if (record != null)
+            record.table = tables.getOrigin();
 
         // write number of bytes of the original uncompressed data
-        binaryOut.write(input.length);
-
-        // use Kernel.Huffman code to encode input
-        for (char c : input) {
-            String code = st[c];
-            for (int j = 0; j < code.length(); j++) {
-                if (code.charAt(j) == '0') {
-                    binaryOut.write(false);
-                } else if (code.charAt(j) == '1') {
-                    binaryOut.write(true);
-                } else throw new IllegalStateException("Illegal state");
+        binaryOut.write(length);
+
+        // use Kernel.Huffman code to encode input block by block
+        if (engine != null) {
+            engine.run(blocks, block -> read(source, block, length, content),
+                    block -> encodeBlock(table, pipeline.forward(CodecContext.get(), block.data), block.crc,
+                            block.binaryOut),
+                    block -> drain(block, binaryOut, record));
+        } else {
+            for (long position = 0; position < length; position += BLOCK_SIZE) {
+                mark(record, position / BLOCK_SIZE, binaryOut);
+                ByteBuffer data = source.read(position, blockSize(position, length), ctx.readBuffer);
+                int crc = checksum(data, content);
+                encodeBlock(table, pipeline.forward(ctx, data), crc, binaryOut);
             }
         }
+        binaryOut.write((int) content.getValue());
     }
 
-    private static Node buildTrie(int[] freq) {
-        PriorityQueue<Node> pq = new PriorityQueue<>();
-        for (char i = 0; i < R; ++i) {
-            if (freq[i] > 0)
-                pq.add(new Node(i, freq[i], null, null));
+    // engine reader: load the uncompressed bytes of the block
+    private static void read(Source source, BlockEngine.Block block, long length) throws IOException {
+        long position = block.index * BLOCK_SIZE;
+        int size = blockSize(position, length);
+        block.data = source.read(position, size, block.input(size));
+    }
+
+    // blocks are read in order, so they go into the checksum of the payload too
+    private static void read(Source source, BlockEngine.Block block, long length, CRC32C content) throws IOException {
+        read(source, block, length);
+        block.crc = checksum(block.data, content);
+    }
+
+    // CRC32C of the remaining bytes of a block
+    static int checksum(ByteBuffer block) {
+        CRC32C crc = CodecContext.get().checksum;
+        crc.reset();
+        crc.update(block.duplicate());
+        return (int) crc.getValue();
+    }
+
+    // the checksum of a block, which is added to the one of its payload as well
+    static int checksum(ByteBuffer block, CRC32C content) {
+        content.update(block.duplicate());
+        return checksum(block);
+    }
+
+    // an expanded block has to come out with the checksum of the original one
+    static void checkBlock(ByteBuffer block, int crc) {
+        if (checksum(block) != crc)
+            throw new IllegalStateException("Block checksum mismatch");
+    }
+
+    // and so does a whole payload, whose checksum follows its last block
+    static void checkPayload(CRC32C content, int crc) {
+        if ((int) content.getValue() != crc)
+            throw new IllegalStateException("Payload checksum mismatch");
+    }
+
+    // engine writer: append the coded bytes of the block to the output
+    private static void drain(BlockEngine.Block block, BinaryOut binaryOut, SeekIndex.Record record) {
+        mark(record, block.index, binaryOut);
+        block.binaryOut.flush();
+        binaryOut.write(block.output.array(), 0, block.output.size());
+        block.output.reset();
+    }
+
+    // the block of the given index starts at the current size of the output
+    private static void mark(SeekIndex.Record record, long index, BinaryOut binaryOut) {
+        if (record != null)
+            record.mark(index, binaryOut.size());
+    }
+
+    private static int blockSize(long position, long length) {
+        return (int) Math.min(BLOCK_SIZE, length - position);
+    }
+
+    // read at most one block of the channel in [position, end) and flip the buffer
+    static void readBlock(FileChannel channel, ByteBuffer buffer, long position, long end) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(BLOCK_SIZE, end - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new RuntimeException("Source truncated during compress");
+        }
+        buffer.flip();
+    }
+
+    // count frequencies of the whole source or a sample, return the number of bytes read
+    private static long tabulate(CodecContext ctx, Source source, Options options, boolean exact,
+                                 BlockEngine engine) throws IOException {
+        CodeTable counted = ctx.literals;
+        Pipeline pipeline = options.getPipeline();
+        long length = source.length();
+        long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        counted.clearFreq();
+        if (!exact && options.samples(length))
+            return sample(ctx, source, options);
+
+        if (engine != null) {
+            // count each block on a worker, add the counts up in the writer
+            engine.run(blocks, block -> read(source, block, length),
+                    block -> {
+                        Arrays.fill(block.freq, 0);
+                        count(block.freq, pipeline.forward(CodecContext.get(), block.data));
+                    },
+                    block -> {
+                        for (int i = 0; i < R; ++i) counted.freq[i] += block.freq[i];
+                    });
+        } else {
+            for (long position = 0; position < length; position += BLOCK_SIZE) {
+                count(counted.freq, pipeline.forward(ctx, source.read(position, blockSize(position, length), ctx.readBuffer)));
+            }
         }
+        return length;
+    }
 
-        // in case there is only one character with a nonzero frequency
-        if (pq.size() == 1) {
-            if (freq['\0'] == 0)
-                pq.add(new Node('\0', 0, null, null));
-            else
-                pq.add(new Node('\1', 0, null, null));
+    // estimate frequency counts from a sample of the source, return the number of bytes read
+    private static long sample(CodecContext ctx, Source source, Options options) throws IOException {
+        CodeTable table = ctx.literals;
+        Pipeline pipeline = options.getPipeline();
+        long length = source.length();
+        long sampleSize = options.getSampleSize();
+
+        long read = 0;
+        if (options.getSampling() == Options.Sampling.PREFIX) {
+            for (long position = 0; position < sampleSize; position += BLOCK_SIZE) {
+                int size = blockSize(position, sampleSize);
+                count(table.freq, pipeline.forward(ctx, source.read(position, size, ctx.readBuffer)));
+                read += size;
+            }
+        } else {
+            long chunks = Math.max(1, sampleSize / SAMPLE_CHUNK);
+            long stride = length / chunks;
+            for (long i = 0; i < chunks; ++i) {
+                long position = i * stride;
+                int size = (int) Math.min(SAMPLE_CHUNK, length - position);
+                count(table.freq, pipeline.forward(ctx, source.read(position, size, ctx.readBuffer)));
+                read += size;
+            }
         }
 
-        // merge two smallest trees
-        while (pq.size() > 1) {
-            Node left = pq.remove();
-            Node right = pq.remove();
-            Node parent = new Node('\0', left.freq + right.freq, left, right);
-            pq.add(parent);
+        // symbols missing from the sample still need a code
+        long[] freq = table.freq;
+        for (int i = 0; i < R; ++i) {
+            if (freq[i] == 0)
+                freq[i] = 1;
         }
+        return read;
+    }
 
-        return pq.remove();
+    static void count(long[] freq, ByteBuffer input) {
+        while (input.hasRemaining()) {
+            ++freq[input.get() & 0xff];
+        }
     }
 
-    // make a look-up table from symbols and their encodings
-    private static void buildCode(String[] st, Node x, String s) {
-        if (!x.isLeaf()) {
-            buildCode(st, x.left,  s + '0');
-            buildCode(st, x.right, s + '1');
+    // block frame: number of symbols, byte-aligned compressed size, checksum of the original bytes, codes
+    static void encodeBlock(CodeTable table, ByteBuffer input, int crc, BinaryOut binaryOut) {
+        binaryOut.write(input.remaining());
+        long bits = 0;
+        for (int i = input.position(); i < input.limit(); ++i) {
+            bits += table.length(input.get(i) & 0xff);
         }
-        else {
-            st[x.ch] = s;
+        binaryOut.write((int) ((bits + 7) >>> 3));
+        binaryOut.write(crc);
+
+        while (input.hasRemaining()) {
+            table.encode(input.get() & 0xff, binaryOut);
         }
+        binaryOut.align();
     }
 
-    private static void writeTrie(BinaryOut binaryOut, Node x) {
-        if (x.isLeaf()) {
-            binaryOut.write(true);
-            binaryOut.write(x.ch, 8);
-            return;
+    public static void expand(BinaryIn binaryIn, BinaryOut binaryOut) {
+        expand(binaryIn, binaryOut, null, new TableCache(0, 0));
+    }
+
+    // expand the payload at the start of src into dst in place, return the number of bytes written.
+    // Both positions move past the bytes used, so src is left at the next payload.
+    public static int expand(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        ByteBuffer expanded = dst.duplicate();
+        BinaryOut binaryOut = new BinaryOut(expanded);
+        BinaryIn binaryIn = new BinaryIn(src.slice());
+        try {
+            expand(binaryIn, binaryOut, null, new TableCache(0, 0));
+            binaryOut.flush();
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Destination too small for expand: " + dst.remaining());
+        }
+        src.position(src.limit() - binaryIn.remaining());
+        dst.position(expanded.position());
+        return dst.position() - start;
+    }
+
+    // expand the payload src[srcOffset, srcOffset + length) to dst from dstOffset on, return the number of bytes
+    // written. The range holds exactly one payload. Use the ByteBuffer overload for several in a row.
+    public static int expand(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        ByteBuffer input = ByteBuffer.wrap(src, srcOffset, length);
+        int written = expand(input, ByteBuffer.wrap(dst, dstOffset, dst.length - dstOffset));
+        if (input.hasRemaining())
+            throw new IllegalArgumentException("Trailing bytes after payload: " + input.remaining());
+        return written;
+    }
+
+    // number of bytes the payload in src expands to, read from its header without moving the position.
+    // -1 for the adaptive coder, which does not record it.
+    public static long expandedLength(ByteBuffer src) {
+        BinaryIn binaryIn = new BinaryIn(src.slice());
+        Pipeline.read(binaryIn);
+        byte coder = binaryIn.readByte();
+        switch (coder) {
+            case ADAPTIVE_CODER:
+                return -1;
+            case STATIC_CODER:
+                new TableCache(0, 0).read(binaryIn, CodecContext.get().literals);
+                binaryIn.align();
+                return binaryIn.readLong();
+            case LZ77_CODER:
+            case STORED_CODER:
+                return binaryIn.readLong();
+            default:
+                throw new IllegalStateException("Unknown coder: " + coder);
         }
-        binaryOut.write(false);
+    }
 
-        writeTrie(binaryOut, x.left);
-        writeTrie(binaryOut, x.right);
+    // expand a payload of the adaptive coder from a stream, so output follows input without waiting for more
+    public static void expand(InputStream inputStream, OutputStream outputStream) {
+        try {
+            AdaptiveHuffman.expand(inputStream, outputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read stream for expand", e);
+        }
     }
 
+    // expand a payload and check every block and the whole payload, return the number of bytes expanded
+    static long expand(BinaryIn binaryIn, BinaryOut binaryOut, BlockEngine engine, TableCache tables) {
+        CodecContext ctx = CodecContext.get();
+        CRC32C content = new CRC32C();
 
-    public static void expand(BinaryIn binaryIn, BinaryOut binaryOut) {
-        // read in Kernel.Huffman trie from input stream
-        Node root = readTrie(binaryIn);
+        // read in stages from input stream
+        Pipeline pipeline = Pipeline.read(binaryIn);
+
+        byte coder = binaryIn.readByte();
+        if (coder == ADAPTIVE_CODER) {
+            // blocks up to an empty one, the length of the payload is not known ahead
+            return AdaptiveHuffman.expand(binaryIn, binaryOut, pipeline);
+        }
+        if (coder == STORED_CODER) {
+            long length = binaryIn.readLong();
+            byte[] block = ctx.bytes(0, BLOCK_SIZE);
+            for (long position = 0; position < length; position += BLOCK_SIZE) {
+                int size = blockSize(position, length);
+                for (int i = 0; i < size; ++i) {
+                    block[i] = binaryIn.readByte();
+                }
+                content.update(block, 0, size);
+                binaryOut.write(block, 0, size);
+            }
+            checkPayload(content, binaryIn.readInt());
+            return length;
+        }
+        if (coder != STATIC_CODER && coder != LZ77_CODER)
+            throw new IllegalStateException("Unknown coder: " + coder);
+
+        // read in Kernel.Huffman trie from input stream, or look up the cached one
+        CodeTable table = coder == STATIC_CODER ? tables.read(binaryIn, ctx.literals) : null;
+        binaryIn.align();
 
         // number of bytes to write
-        int length = binaryIn.readInt();
-
-        // expand using the Kernel.Huffman trie
-        for (int i = 0; i < length; i++) {
-            Node x = root;
-            while (!x.isLeaf()) {
-                boolean bit = binaryIn.readBoolean();
-                if (bit) x = x.right;
-                else     x = x.left;
+        long length = binaryIn.readLong();
+        long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        if (engine != null && blocks >= MIN_ENGINE_BLOCKS) {
+            engine.run(blocks,
+                    block -> {
+                        block.symbols = readSymbols(binaryIn, pipeline);
+                        int size = binaryIn.readInt();
+                        if (size < 0)
+                            throw new IllegalStateException("Illegal compressed block size: " + size);
+                        block.crc = binaryIn.readInt();
+
+                        ByteBuffer input = block.input(size);
+                        for (int i = 0; i < size; ++i) {
+                            input.put(binaryIn.readByte());
+                        }
+                        input.flip();
+                        block.data = input;
+                    },
+                    block -> {
+                        ByteBuffer data = expandBlock(CodecContext.get(), pipeline, coder, table, block.symbols,
+                                new BinaryIn(block.data), blockSize(block.index * BLOCK_SIZE, length), block.crc);
+                        block.output.reset();
+                        block.output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    },
+                    block -> {
+                        content.update(block.output.array(), 0, block.output.size());
+                        binaryOut.write(block.output.array(), 0, block.output.size());
+                    });
+        } else {
+            // expand block by block
+            for (long position = 0; position < length; position += BLOCK_SIZE) {
+                int symbols = readSymbols(binaryIn, pipeline);
+
+                // the compressed size is only needed to skip a block
+                binaryIn.readInt();
+                int crc = binaryIn.readInt();
+
+                ByteBuffer block = expandBlock(ctx, pipeline, coder, table, symbols, binaryIn,
+                        blockSize(position, length), crc);
+                content.update(block.duplicate());
+                binaryOut.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
             }
-            binaryOut.write(x.ch, 8);
         }
+        checkPayload(content, binaryIn.readInt());
+        return length;
     }
 
+    private static int readSymbols(BinaryIn binaryIn, Pipeline pipeline) {
+        int symbols = binaryIn.readInt();
+        if (symbols <= 0 || symbols > pipeline.capacity())
+            throw new IllegalStateException("Illegal block size: " + symbols);
+        return symbols;
+    }
 
-    private static Node readTrie(BinaryIn in) {
-        boolean isLeaf = in.readBoolean();
-        if (isLeaf) {
-            return new Node(in.readChar(), -1, null, null);
-        } else {
-            return new Node('\0', -1, readTrie(in), readTrie(in));
+    // decode and transform back one block, which has to come out at the given size and checksum
+    static ByteBuffer expandBlock(CodecContext ctx, Pipeline pipeline, byte coder, CodeTable table,
+                                  int symbols, BinaryIn binaryIn, int size, int crc) {
+        byte[] data = ctx.bytes(0, pipeline.capacity());
+        if (coder == STATIC_CODER)
+            decodeBlock(table, data, symbols, binaryIn);
+        else
+            LZ77.decodeBlock(ctx, data, symbols, binaryIn);
+
+        ByteBuffer block = pipeline.inverse(ctx, data, symbols);
+        if (block.remaining() != size)
+            throw new IllegalStateException("Block expands to " + block.remaining() + " bytes instead of " + size);
+        checkBlock(block, crc);
+        return block;
+    }
+
+    static void decodeBlock(CodeTable table, byte[] data, int symbols, BinaryIn binaryIn) {
+        for (int i = 0; i < symbols; i++) {
+            data[i] = (byte) table.decode(binaryIn);
         }
+        binaryIn.align();
     }
 
     public static void main(String[] args) {
+        // in memory, with the output allocated up front
+        byte[] bytes = "hello, hello, hello, world!".getBytes();
+        byte[] packed = new byte[maxCompressedLength(bytes.length)];
+        int packedLength = compress(bytes, 0, bytes.length, packed, 0);
+        byte[] unpacked = new byte[(int) expandedLength(ByteBuffer.wrap(packed, 0, packedLength))];
+        expand(packed, 0, packedLength, unpacked, 0);
+        System.out.println(new String(unpacked) + " (" + bytes.length + " -> " + packedLength + " bytes)");
+
         String data = "hello, world!";
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data.getBytes());
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
@@ -172,5 +672,46 @@ public class Huffman {
         out2.close();
 
         System.out.println(byteArrayOutputStream2.toString());
+
+        if (args.length > 0 && args[0].equals("--benchmark"))
+            benchmark();
+    }
+
+    // static vs adaptive coder on text whose vocabulary changes halfway.
+    // The static coder runs in memory so that input buffering does not count.
+    private static void benchmark() {
+        Random random = new Random(42);
+        String[][] vocabularies = {{"huffman ", "block ", "stage ", "the ", "of ", "\n"},
+                                   {"ADAPTIVE ", "MODEL ", "STREAM ", "0123 ", "4567 ", "\n"}};
+        byte[] data = new byte[16 << 20];
+        for (int i = 0; i < data.length; ) {
+            String[] words = vocabularies[i < data.length / 2 ? 0 : 1];
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            for (int k = 0; k < word.length && i < data.length; ++k) data[i++] = word[k];
+        }
+        double megabytes = (double) data.length / (1 << 20);
+        byte[] packed = new byte[maxCompressedLength(data.length)];
+
+        for (int round = 0; round < 3; ++round) {
+            long startTime = System.nanoTime();
+            int staticSize = compress(data, 0, data.length, packed, 0);
+            long staticTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            ByteArrayOutputStream adaptiveOut = new ByteArrayOutputStream();
+            compress(new ByteArrayInputStream(data), adaptiveOut, new Options());
+            long adaptiveTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            ByteArrayOutputStream expanded = new ByteArrayOutputStream();
+            expand(new ByteArrayInputStream(adaptiveOut.toByteArray()), expanded);
+            long expandTime = System.nanoTime() - startTime;
+            if (!Arrays.equals(data, expanded.toByteArray()))
+                throw new IllegalStateException("Adaptive round trip failed");
+
+            System.out.printf("static: %.1f MB/s, %d bytes | adaptive: %.1f MB/s, %d bytes, expand %.1f MB/s%n",
+                    megabytes / (staticTime / 1e9), staticSize,
+                    megabytes / (adaptiveTime / 1e9), adaptiveOut.size(), megabytes / (expandTime / 1e9));
+        }
     }
 }
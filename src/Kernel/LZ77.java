@@ -0,0 +1,254 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static Kernel.Huffman.R;
+
+// Deflate-style coding of a block: a hash-chain match finder over a sliding window inside the block,
+// literals and match lengths share one Kernel.Huffman table, match distances use another
+final class LZ77 {
+    static final int MIN_MATCH = 3;
+    static final int MAX_MATCH = 258;
+    static final int WINDOW = 1 << 15;
+
+    static final int HASH_BITS = 15;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+
+    // alphabet sizes: bytes followed by the length codes, and the distance codes
+    static final int LITERALS = R + LENGTH_BASE.length;
+    static final int DISTANCES = DISTANCE_BASE.length;
+
+    // search effort by level: longest hash chain followed and match length that ends the search
+    private static final int[] MAX_CHAIN = { 0, 4, 8, 16, 32, 64, 128, 256, 1024, 4096 };
+    private static final int[] NICE_LENGTH = { 0, 8, 16, 32, 32, 64, 128, 128, MAX_MATCH, MAX_MATCH };
+
+    // from this level on, a match is deferred when the next position has a longer one
+    private static final int LAZY_LEVEL = 4;
+
+    // code of each match length and of each distance
+    private static final byte[] LENGTH_CODE = new byte[MAX_MATCH + 1];
+    private static final byte[] DISTANCE_CODE = new byte[WINDOW + 1];
+
+    static {
+        for (int code = 0; code < LENGTH_BASE.length; ++code) {
+            for (int length = LENGTH_BASE[code]; length < LENGTH_BASE[code] + (1 << LENGTH_EXTRA[code]) && length <= MAX_MATCH; ++length)
+                LENGTH_CODE[length] = (byte) code;
+        }
+        // 258 has a code of its own
+        LENGTH_CODE[MAX_MATCH] = (byte) (LENGTH_BASE.length - 1);
+
+        for (int code = 0; code < DISTANCE_BASE.length; ++code) {
+            for (int distance = DISTANCE_BASE[code]; distance < DISTANCE_BASE[code] + (1 << DISTANCE_EXTRA[code]); ++distance)
+                DISTANCE_CODE[distance] = (byte) code;
+        }
+    }
+
+    // Do not instantiate
+    private LZ77() { }
+
+    // write one block as its number of symbols, byte-aligned compressed size and the checksum of its original
+    // bytes, followed by its two tries and the codes of its literals and matches
+    static void encodeBlock(CodecContext ctx, int level, ByteBuffer input, int crc, BinaryOut binaryOut) {
+        int n = input.remaining();
+        byte[] src;
+        int offset;
+        if (input.hasArray()) {
+            src = input.array();
+            offset = input.arrayOffset() + input.position();
+        } else {
+            src = ctx.bytes(0, n);
+            offset = 0;
+            input.get(src, 0, n);
+        }
+
+        // matches have a length, literals a length of 0 and the byte as value
+        int[] matchLength = ctx.ints(7, n);
+        int[] value = ctx.ints(8, n);
+        int tokens = parse(ctx, level, src, offset, n, matchLength, value);
+
+        // tabulate frequency counts and build the tables of this block
+        CodeTable literals = ctx.lzLiterals;
+        CodeTable distances = ctx.lzDistances;
+        literals.clearFreq();
+        distances.clearFreq();
+        for (int t = 0; t < tokens; ++t) {
+            if (matchLength[t] == 0) {
+                ++literals.freq[value[t]];
+            } else {
+                ++literals.freq[R + LENGTH_CODE[matchLength[t]]];
+                ++distances.freq[DISTANCE_CODE[value[t]]];
+            }
+        }
+        literals.build();
+        distances.build();
+
+        long bits = literals.trieBits() + distances.trieBits();
+        for (int t = 0; t < tokens; ++t) {
+            if (matchLength[t] == 0) {
+                bits += literals.length(value[t]);
+            } else {
+                int lengthCode = LENGTH_CODE[matchLength[t]];
+                int distanceCode = DISTANCE_CODE[value[t]];
+                bits += literals.length(R + lengthCode) + LENGTH_EXTRA[lengthCode]
+                        + distances.length(distanceCode) + DISTANCE_EXTRA[distanceCode];
+            }
+        }
+
+        binaryOut.write(n);
+        binaryOut.write((int) ((bits + 7) >>> 3));
+        binaryOut.write(crc);
+        literals.write(binaryOut);
+        distances.write(binaryOut);
+
+        for (int t = 0; t < tokens; ++t) {
+            if (matchLength[t] == 0) {
+                literals.encode(value[t], binaryOut);
+            } else {
+                int lengthCode = LENGTH_CODE[matchLength[t]];
+                literals.encode(R + lengthCode, binaryOut);
+                if (LENGTH_EXTRA[lengthCode] > 0)
+                    binaryOut.write(matchLength[t] - LENGTH_BASE[lengthCode], LENGTH_EXTRA[lengthCode]);
+
+                int distanceCode = DISTANCE_CODE[value[t]];
+                distances.encode(distanceCode, binaryOut);
+                if (DISTANCE_EXTRA[distanceCode] > 0)
+                    binaryOut.write(value[t] - DISTANCE_BASE[distanceCode], DISTANCE_EXTRA[distanceCode]);
+            }
+        }
+        binaryOut.align();
+    }
+
+    // split src[offset, offset + n) into literals and matches, return the number of tokens
+    private static int parse(CodecContext ctx, int level, byte[] src, int offset, int n, int[] matchLength, int[] value) {
+        int[] head = ctx.ints(5, 1 << HASH_BITS);
+        int[] prev = ctx.ints(6, n);
+        Arrays.fill(head, 0, 1 << HASH_BITS, -1);
+
+        int maxChain = MAX_CHAIN[level];
+        int niceLength = NICE_LENGTH[level];
+        boolean lazy = level >= LAZY_LEVEL;
+
+        int tokens = 0;
+        int hashed = 0;     // positions before it are in the hash chains
+        int[] match = new int[2];
+        for (int i = 0; i < n; ) {
+            int length = 0;
+            int distance = 0;
+            if (i + MIN_MATCH <= n) {
+                hashed = insert(src, offset, n, head, prev, hashed, i);
+                longestMatch(src, offset, n, prev, i, maxChain, niceLength, match);
+                length = match[0];
+                distance = match[1];
+
+                // emit a literal instead if the next position starts a longer match
+                while (lazy && length >= MIN_MATCH && length < niceLength && i + 1 + MIN_MATCH <= n) {
+                    hashed = insert(src, offset, n, head, prev, hashed, i + 1);
+                    longestMatch(src, offset, n, prev, i + 1, maxChain, niceLength, match);
+                    if (match[0] <= length) break;
+
+                    matchLength[tokens] = 0;
+                    value[tokens++] = src[offset + i] & 0xff;
+                    ++i;
+                    length = match[0];
+                    distance = match[1];
+                }
+            }
+
+            if (length >= MIN_MATCH) {
+                matchLength[tokens] = length;
+                value[tokens++] = distance;
+                i += length;
+            } else {
+                matchLength[tokens] = 0;
+                value[tokens++] = src[offset + i] & 0xff;
+                ++i;
+            }
+        }
+        return tokens;
+    }
+
+    // add the positions from hashed to i to the hash chains, return the new hashed position
+    private static int insert(byte[] src, int offset, int n, int[] head, int[] prev, int hashed, int i) {
+        for (; hashed <= i && hashed + MIN_MATCH <= n; ++hashed) {
+            int p = offset + hashed;
+            int h = (((src[p] & 0xff) << 16) | ((src[p + 1] & 0xff) << 8) | (src[p + 2] & 0xff)) * 0x9e3779b1 >>> (32 - HASH_BITS);
+            prev[hashed] = head[h];
+            head[h] = hashed;
+        }
+        return hashed;
+    }
+
+    // find the longest earlier match of position i in the window, store its length and distance
+    private static void longestMatch(byte[] src, int offset, int n, int[] prev, int i,
+                                     int maxChain, int niceLength, int[] match) {
+        int best = 0;
+        int distance = 0;
+        int limit = Math.min(MAX_MATCH, n - i);
+        for (int candidate = prev[i], chain = maxChain;
+             candidate >= 0 && i - candidate <= WINDOW && chain > 0;
+             candidate = prev[candidate], --chain) {
+            // quick reject on the byte that would make the match longer
+            if (best > 0 && src[offset + candidate + best] != src[offset + i + best]) continue;
+
+            int length = 0;
+            while (length < limit && src[offset + candidate + length] == src[offset + i + length]) ++length;
+            if (length > best) {
+                best = length;
+                distance = i - candidate;
+                if (best >= niceLength || best == limit) break;
+            }
+        }
+        match[0] = best;
+        match[1] = distance;
+    }
+
+    static void decodeBlock(CodecContext ctx, byte[] data, int symbols, BinaryIn binaryIn) {
+        CodeTable literals = ctx.lzLiterals;
+        CodeTable distances = ctx.lzDistances;
+        literals.read(binaryIn);
+        distances.read(binaryIn);
+
+        for (int j = 0; j < symbols; ) {
+            int symbol = literals.decode(binaryIn);
+            if (symbol < R) {
+                data[j++] = (byte) symbol;
+                continue;
+            }
+
+            int lengthCode = symbol - R;
+            int length = LENGTH_BASE[lengthCode];
+            if (LENGTH_EXTRA[lengthCode] > 0)
+                length += binaryIn.readInt(LENGTH_EXTRA[lengthCode]);
+
+            int distanceCode = distances.decode(binaryIn);
+            int distance = DISTANCE_BASE[distanceCode];
+            if (DISTANCE_EXTRA[distanceCode] > 0)
+                distance += binaryIn.readInt(DISTANCE_EXTRA[distanceCode]);
+
+            if (distance > j || j + length > symbols)
+                throw new IllegalStateException("Match outside of block");
+
+            // copy byte by byte, the match may overlap the bytes it produces
+            for (int k = 0; k < length; ++k, ++j) {
+                data[j] = data[j - distance];
+            }
+        }
+        binaryIn.align();
+    }
+}
@@ -0,0 +1,90 @@
+package Kernel;
+
+import Constant.Constants;
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// reader of the archives of the first release, which have no archive head and start with the entry itself.
+// Each entry is a bit set for a file and clear for a directory, and its name (int length and UTF-8 bytes), then
+//   file:      a bit set if it is empty, otherwise its trie, the int number of bytes and their codes
+//   directory: a bit set if it is empty, otherwise the int number of children and the children entries
+// packed bit by bit without any alignment, and without checksums.
+final class LegacyArchive {
+    private static final boolean FILE_BIT = true;
+    private static final boolean EMPTY_BIT = true;
+
+    // Do not instantiate
+    private LegacyArchive() { }
+
+    // whether the archive starts with an entry of the first release instead of the magic number:
+    // its first bit is followed by the length of a name
+    static boolean detect(File file) {
+        ByteBuffer head = ByteBuffer.allocate(Long.BYTES);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (head.position() < Integer.BYTES + 1) {
+                if (channel.read(head) < 0)
+                    return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read archive: " + file.getName(), e);
+        }
+        if (head.getInt(0) == Constants.HFM_MAGIC)
+            return false;
+
+        int nameLength = (int) (head.getLong(0) >>> (Long.SIZE - 1 - Integer.SIZE));
+        return nameLength > 0 && nameLength <= API.MAX_NAME_BYTES;
+    }
+
+    // expand the entry into the parent, a null parent only decodes it, return the number of bytes it expands to
+    static long expand(File parent, BinaryIn binaryIn) {
+        boolean isFile = binaryIn.readBoolean() == FILE_BIT;
+
+        // deal with chinese
+        String name = new String(API.readName(binaryIn), StandardCharsets.UTF_8);
+        boolean isEmpty = binaryIn.readBoolean() == EMPTY_BIT;
+
+        if (isFile) {
+            BinaryOut binaryOut = parent == null ? new BinaryOut(new API.Discard(), CodecContext.get().writeBuffer)
+                                                 : new BinaryOut(new File(parent, name));
+            long length = isEmpty ? 0 : expandFile(binaryIn, binaryOut);
+            binaryOut.close();
+            return length;
+        }
+
+        File dir = parent == null ? null : new File(parent, name);
+        if (dir != null && !dir.mkdirs())
+            throw new RuntimeException("Failed to make dir: " + name);
+        if (isEmpty)
+            return 0;
+
+        // expand each content respectively
+        int count = binaryIn.readInt();
+        if (count < 0)
+            throw new IllegalStateException("Illegal number of children: " + count);
+        long total = 0;
+        for (int i = 0; i < count; ++i) {
+            total += expand(dir, binaryIn);
+        }
+        return total;
+    }
+
+    // the trie, the number of bytes and their codes
+    private static long expandFile(BinaryIn binaryIn, BinaryOut binaryOut) {
+        CodeTable table = CodecContext.get().literals;
+        table.read(binaryIn);
+
+        int length = binaryIn.readInt();
+        if (length < 0)
+            throw new IllegalStateException("Illegal file length: " + length);
+        for (int i = 0; i < length; ++i) {
+            binaryOut.write((byte) table.decode(binaryIn));
+        }
+        return length;
+    }
+}
@@ -0,0 +1,358 @@
+package Kernel;
+
+import Constant.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// file tree to compress with the size of every entry, scanned in a single walk that reads the attributes
+// of each entry once, so that compress, estimate and the ratio reporting never stat the tree again
+public class Manifest {
+    private static final int DIGEST_BUFFER = 1 << 16;
+
+    // a file, or a directory with its children in listing order
+    public static final class Entry {
+        private final Path path;
+        private final String name;
+        private final boolean directory;
+        private long length;                          // bytes of the file, or of all the files below
+        private final List<Entry> children = new ArrayList<>();
+
+        // set by findDuplicates: the earlier file with the same content, or the position of this file
+        // among the files later ones refer to
+        private Entry original;
+        private long shared = -1;
+
+        private Entry(Path path, String name, boolean directory, long length) {
+            this.path = path;
+            this.name = name;
+            this.directory = directory;
+            this.length = length;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public List<Entry> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        // the first file in archive order with the same content, null if there is none
+        public Entry getOriginal() {
+            return original;
+        }
+
+        // position among the files that later files have the same content as, -1 if this is none of them
+        public long getShared() {
+            return shared;
+        }
+    }
+
+    private final Entry root;
+
+    private Manifest(Entry root) {
+        this.root = root;
+    }
+
+    public static Manifest scan(File src) {
+        return scan(src, 0);
+    }
+
+    // walk the tree on the calling thread, or scan its subtrees in parallel on the given number of threads,
+    // links are followed and entries in Constants.IGNORE_SET below the root are left out
+    public static Manifest scan(File src, int threads) {
+        if (null == src)
+            throw new IllegalArgumentException("Null source file for scan");
+        if (threads < 0)
+            throw new IllegalArgumentException("Illegal number of threads: " + threads);
+
+        Path path = src.toPath();
+        try {
+            if (threads == 0)
+                return new Manifest(walk(path, src.getName()));
+
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Entry root = entry(path, src.getName(), attributes);
+            if (!root.directory)
+                return new Manifest(root);
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new ScanTask(root, Collections.singletonList(attributes.fileKey())));
+            } finally {
+                pool.shutdown();
+            }
+            return new Manifest(root);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to scan: " + src.getName(), e);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("Failed to scan: " + src.getName(), e.getCause());
+        }
+    }
+
+    private static Entry entry(Path path, String name, BasicFileAttributes attributes) {
+        if (attributes.isDirectory())
+            return new Entry(path, name, true, 0);
+        if (attributes.isRegularFile())
+            return new Entry(path, name, false, attributes.size());
+        throw new RuntimeException("Unknown kind of source");
+    }
+
+    private static boolean ignored(Path path) {
+        return Constants.IGNORE_SET.contains(path.getFileName().toString());
+    }
+
+    // depth-first walk, the directories on the way down add up the lengths of their entries
+    private static Entry walk(Path path, String name) throws IOException {
+        ArrayDeque<Entry> open = new ArrayDeque<>();
+        Entry[] root = new Entry[1];
+
+        Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                        if (!open.isEmpty() && ignored(dir))
+                            return FileVisitResult.SKIP_SUBTREE;
+                        open.push(visit(dir, attributes));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (open.isEmpty() || !ignored(file))
+                            visit(file, attributes);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    // add the entry to the directory on top, or make it the root
+                    private Entry visit(Path path, BasicFileAttributes attributes) {
+                        if (open.isEmpty())
+                            return root[0] = entry(path, name, attributes);
+
+                        Entry entry = entry(path, path.getFileName().toString(), attributes);
+                        open.peek().children.add(entry);
+                        open.peek().length += entry.length;
+                        return entry;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        throw e;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        if (e != null)
+                            throw e;
+                        Entry done = open.pop();
+                        if (!open.isEmpty())
+                            open.peek().length += done.length;
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        return root[0];
+    }
+
+    // scan of one directory, its subdirectories are forked as tasks of their own
+    private static final class ScanTask extends RecursiveTask<Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry dir;
+        private final List<Object> ancestors;    // file keys of the directories on the way down, to catch link loops
+
+        ScanTask(Entry dir, List<Object> ancestors) {
+            this.dir = dir;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected Entry compute() {
+            ArrayList<ScanTask> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.path)) {
+                for (Path path : stream) {
+                    if (ignored(path))
+                        continue;
+
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    Entry entry = entry(path, path.getFileName().toString(), attributes);
+                    dir.children.add(entry);
+                    if (!entry.directory) {
+                        dir.length += entry.length;
+                        continue;
+                    }
+
+                    Object key = attributes.fileKey();
+                    if (key != null && ancestors.contains(key))
+                        throw new FileSystemLoopException(path.toString());
+                    ArrayList<Object> below = new ArrayList<>(ancestors);
+                    below.add(key);
+
+                    ScanTask task = new ScanTask(entry, below);
+                    task.fork();
+                    tasks.add(task);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (ScanTask task : tasks) {
+                dir.length += task.join().length;
+            }
+            return dir;
+        }
+    }
+
+    // find the files whose content equals the one of an earlier file in archive order: only files sharing their
+    // size with another are hashed, on the given number of threads or the calling thread if it is 0
+    public void findDuplicates(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("Illegal number of threads: " + threads);
+
+        ArrayList<Entry> files = new ArrayList<>();
+        collect(root, files);
+
+        // files of a size no other file has are unique already
+        LinkedHashMap<Long, List<Entry>> sizes = new LinkedHashMap<>();
+        for (Entry file : files) {
+            file.original = null;
+            file.shared = -1;
+            if (file.length > 0)
+                sizes.computeIfAbsent(file.length, length -> new ArrayList<>()).add(file);
+        }
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (List<Entry> group : sizes.values()) {
+            if (group.size() > 1)
+                candidates.addAll(group);
+        }
+        if (candidates.isEmpty())
+            return;
+
+        Map<Entry, ByteBuffer> digests = hash(candidates, threads);
+
+        // the first file of each content is the original of the later ones
+        HashSet<Entry> originals = new HashSet<>();
+        for (List<Entry> group : sizes.values()) {
+            if (group.size() < 2) continue;
+            HashMap<ByteBuffer, Entry> firsts = new HashMap<>();
+            for (Entry file : group) {
+                Entry first = firsts.putIfAbsent(digests.get(file), file);
+                if (first != null) {
+                    file.original = first;
+                    originals.add(first);
+                }
+            }
+        }
+
+        // number the originals in archive order, so that the expander can keep just those
+        long shared = 0;
+        for (Entry file : files) {
+            if (originals.contains(file))
+                file.shared = shared++;
+        }
+    }
+
+    // files in the order compress writes them
+    private static void collect(Entry entry, List<Entry> files) {
+        if (!entry.directory) {
+            files.add(entry);
+            return;
+        }
+        for (Entry child : entry.children) {
+            collect(child, files);
+        }
+    }
+
+    private static Map<Entry, ByteBuffer> hash(List<Entry> files, int threads) {
+        Map<Entry, ByteBuffer> digests = new ConcurrentHashMap<>();
+        if (threads == 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER);
+            for (Entry file : files) {
+                digests.put(file, digest(file, buffer));
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.submit(() -> files.parallelStream()
+                        .forEach(file -> digests.put(file, digest(file, ByteBuffer.allocate(DIGEST_BUFFER)))))
+                        .get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while hashing", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new RuntimeException("Failed to hash files", cause);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return digests;
+    }
+
+    // SHA-256 of the content of a file
+    private static ByteBuffer digest(Entry file, ByteBuffer buffer) {
+        try (FileChannel channel = FileChannel.open(file.path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) break;
+                buffer.flip();
+                digest.update(buffer);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + file.name, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public Entry getRoot() {
+        return root;
+    }
+
+    // bytes of all the files in the tree
+    public long getLength() {
+        return root.length;
+    }
+}
@@ -0,0 +1,117 @@
+package Kernel;
+
+// process-wide budget of heap bytes that stream buffers, engine blocks, worker contexts and decode tables reserve from
+// before they allocate, so that concurrent jobs wait or fall back to streaming instead of exhausting the heap,
+// the limit defaults to half the maximum heap and can be set with -Dhuffman.memory=bytes
+public final class MemoryBudget {
+    private static final MemoryBudget GLOBAL =
+            new MemoryBudget(Long.getLong("huffman.memory", Runtime.getRuntime().maxMemory() / 2));
+
+    private long limit;
+    private long reserved;
+
+    // bytes held until closed, closing twice releases them once
+    public final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            synchronized (MemoryBudget.this) {
+                return bytes;
+            }
+        }
+
+        // hold more bytes right away even past the limit, for memory a job cannot go on without,
+        // growing never waits so that jobs holding bytes never wait on each other
+        public void grow(long more) {
+            if (more < 0)
+                throw new IllegalArgumentException("Illegal reservation: " + more);
+
+            synchronized (MemoryBudget.this) {
+                reserved += more;
+                bytes += more;
+            }
+        }
+
+        // hold more bytes if they fit right now
+        public boolean tryGrow(long more) {
+            synchronized (MemoryBudget.this) {
+                if (!fits(more))
+                    return false;
+                reserved += more;
+                bytes += more;
+                return true;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                reserved -= bytes;
+                bytes = 0;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+    }
+
+    public MemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    public synchronized void setLimit(long limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Illegal memory limit: " + limit);
+
+        this.limit = limit;
+        notifyAll();
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    // nothing always fits, and a request larger than the whole limit fits once nothing else is reserved,
+    // so that it still runs alone
+    private boolean fits(long bytes) {
+        return bytes == 0 || reserved + bytes <= limit || reserved == 0;
+    }
+
+    // wait until the bytes fit
+    public synchronized Reservation reserve(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Illegal reservation: " + bytes);
+
+        while (!fits(bytes)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for memory", e);
+            }
+        }
+        reserved += bytes;
+        return new Reservation(bytes);
+    }
+
+    // the reservation if the bytes fit right now, null otherwise
+    public synchronized Reservation tryReserve(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Illegal reservation: " + bytes);
+
+        if (!fits(bytes))
+            return null;
+        reserved += bytes;
+        return new Reservation(bytes);
+    }
+}
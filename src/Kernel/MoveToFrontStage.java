@@ -0,0 +1,56 @@
+package Kernel;
+
+import static Kernel.Huffman.R;
+
+// replace each byte with its index in a list of recently used bytes, so that local repeats become small numbers
+public class MoveToFrontStage implements Stage {
+    public static final byte ID = 2;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "MTF";
+    }
+
+    @Override
+    public int maxLength(int length) {
+        return length;
+    }
+
+    @Override
+    public int forward(byte[] src, int length, byte[] dst) {
+        byte[] list = initialList();
+        for (int i = 0; i < length; ++i) {
+            byte b = src[i];
+            int index = 0;
+            while (list[index] != b) ++index;
+            System.arraycopy(list, 0, list, 1, index);
+            list[0] = b;
+            dst[i] = (byte) index;
+        }
+        return length;
+    }
+
+    @Override
+    public int inverse(byte[] src, int length, byte[] dst) {
+        byte[] list = initialList();
+        for (int i = 0; i < length; ++i) {
+            int index = src[i] & 0xff;
+            byte b = list[index];
+            System.arraycopy(list, 0, list, 1, index);
+            list[0] = b;
+            dst[i] = b;
+        }
+        return length;
+    }
+
+    private static byte[] initialList() {
+        byte[] list = new byte[R];
+        for (int i = 0; i < R; ++i) list[i] = (byte) i;
+        return list;
+    }
+}
@@ -0,0 +1,155 @@
+package Kernel;
+
+// settings of a compress task, the defaults reproduce the exact two-pass encoding
+public class Options {
+    // how the frequency counts for the code table are collected
+    public enum Sampling {
+        FULL,       // count every byte of the input
+        PREFIX,     // count the first sample size bytes
+        STRIDED     // count evenly spaced chunks adding up to the sample size
+    }
+
+    public static final long DEFAULT_SAMPLE_SIZE = 4L << 20;
+    public static final int MAX_LEVEL = 9;
+    public static final int DEFAULT_CACHED_TABLES = 64;
+    public static final double DEFAULT_TABLE_PENALTY = 0;
+    public static final int DEFAULT_INTERVAL = 16 << 10;
+
+    private Sampling sampling = Sampling.FULL;
+    private long sampleSize = DEFAULT_SAMPLE_SIZE;
+    private Pipeline pipeline = Pipeline.NONE;
+    private int level = 0;
+    private int interval = 0;
+    private int workers = 0;
+    private int cachedTables = DEFAULT_CACHED_TABLES;
+    private double tablePenalty = DEFAULT_TABLE_PENALTY;
+    private boolean deduplicating = true;
+    private long checkpointInterval = 0;
+
+    public Options sampling(Sampling sampling, long sampleSize) {
+        if (null == sampling)
+            throw new IllegalArgumentException("Null sampling mode");
+        if (sampleSize <= 0)
+            throw new IllegalArgumentException("Illegal sample size: " + sampleSize);
+
+        this.sampling = sampling;
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    // transform each block through the given stages, in order, before coding it
+    public Options transforms(Stage... stages) {
+        this.pipeline = new Pipeline(stages);
+        return this;
+    }
+
+    // 0 codes bytes with one table, 1 to MAX_LEVEL find Kernel.LZ77 matches with growing effort
+    public Options level(int level) {
+        if (level < 0 || level > MAX_LEVEL)
+            throw new IllegalArgumentException("Illegal compression level: " + level);
+
+        this.level = level;
+        return this;
+    }
+
+    // code in one pass, rebuilding the table every interval bytes (at most Kernel.Huffman.BLOCK_SIZE).
+    // Overrides the level. 0 turns it off.
+    public Options adaptive(int interval) {
+        if (interval < 0 || interval > Huffman.BLOCK_SIZE)
+            throw new IllegalArgumentException("Illegal adaptive interval: " + interval);
+
+        this.interval = interval;
+        return this;
+    }
+
+    // code blocks on the given number of worker threads, with reading and writing on threads of their own,
+    // 0 does everything on the calling thread
+    public Options workers(int workers) {
+        if (workers < 0)
+            throw new IllegalArgumentException("Illegal number of workers: " + workers);
+
+        this.workers = workers;
+        return this;
+    }
+
+    // keep up to the given number of code tables for the files of an archive, a file reuses a cached table
+    // while it costs at most the given fraction more bits than a table of its own, 0 tables disables reuse
+    public Options tableCache(int tables, double maxPenalty) {
+        if (tables < 0 || tables > TableCache.MAX_TABLES)
+            throw new IllegalArgumentException("Illegal number of cached tables: " + tables);
+        if (maxPenalty < 0)
+            throw new IllegalArgumentException("Illegal table penalty: " + maxPenalty);
+
+        this.cachedTables = tables;
+        this.tablePenalty = maxPenalty;
+        return this;
+    }
+
+    // store files with the same content as an earlier one of the archive as links to it
+    public Options deduplicate(boolean deduplicating) {
+        this.deduplicating = deduplicating;
+        return this;
+    }
+
+    // record in the seek index of the archive where the block of every given number of uncompressed bytes starts,
+    // rounded up to whole blocks of Kernel.Huffman.BLOCK_SIZE, so that Kernel.ArchiveReader can start decoding
+    // a range near it, 0 only records the first block
+    public Options checkpoints(long interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Illegal checkpoint interval: " + interval);
+
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    // blocks between checkpoints, 0 if only the first block is recorded
+    int checkpointBlocks() {
+        long blocks = (checkpointInterval + Huffman.BLOCK_SIZE - 1) / Huffman.BLOCK_SIZE;
+        return (int) Math.min(blocks, Integer.MAX_VALUE);
+    }
+
+    // whether the frequency pass over a source of the given length only reads a sample of it
+    boolean samples(long length) {
+        return sampling != Sampling.FULL && length > sampleSize;
+    }
+
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    public long getSampleSize() {
+        return sampleSize;
+    }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getCachedTables() {
+        return cachedTables;
+    }
+
+    public double getTablePenalty() {
+        return tablePenalty;
+    }
+
+    public boolean isDeduplicating() {
+        return deduplicating;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+}
@@ -0,0 +1,164 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static Kernel.Huffman.BLOCK_SIZE;
+
+// chain of stages every block goes through before Kernel.Huffman coding, recorded in the payload
+public class Pipeline {
+    // read by codec and engine threads while a custom stage may be registered
+    private static final ConcurrentHashMap<Byte, Stage> REGISTRY = new ConcurrentHashMap<>();
+
+    static {
+        register(new RunLengthStage());
+        register(new MoveToFrontStage());
+        register(new BlockSortStage());
+    }
+
+    public static final Pipeline NONE = new Pipeline();
+
+    private final Stage[] stages;
+    private final int capacity;     // largest intermediate block of the chain
+
+    public Pipeline(Stage... stages) {
+        if (null == stages)
+            throw new IllegalArgumentException("Null stages for pipeline");
+        if (stages.length > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Too many stages: " + stages.length);
+
+        int capacity = BLOCK_SIZE;
+        int length = BLOCK_SIZE;
+        for (Stage stage : stages) {
+            if (null == stage)
+                throw new IllegalArgumentException("Null stage in pipeline");
+            Stage known = REGISTRY.get(stage.id());
+            if (null == known || known.getClass() != stage.getClass())
+                throw new IllegalArgumentException("Unregistered stage: " + stage.name());
+            length = stage.maxLength(length);
+            capacity = Math.max(capacity, length);
+        }
+        this.stages = stages.clone();
+        this.capacity = capacity;
+    }
+
+    // make a custom stage known to the reader, ids must not clash with the built-in ones
+    public static synchronized void register(Stage stage) {
+        Stage known = REGISTRY.get(stage.id());
+        if (known != null && known.getClass() != stage.getClass())
+            throw new IllegalArgumentException("Stage id " + stage.id() + " already used by " + known.name());
+        REGISTRY.put(stage.id(), stage);
+    }
+
+    public boolean isEmpty() {
+        return stages.length == 0;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // number of bytes write takes
+    int headerBytes() {
+        return 1 + stages.length;
+    }
+
+    void write(BinaryOut binaryOut) {
+        binaryOut.write((byte) stages.length);
+        for (Stage stage : stages) {
+            binaryOut.write(stage.id());
+        }
+    }
+
+    static Pipeline read(BinaryIn binaryIn) {
+        int count = binaryIn.readByte();
+        if (count == 0)
+            return NONE;
+        if (count < 0)
+            throw new RuntimeException("Illegal number of stages: " + count);
+
+        Stage[] stages = new Stage[count];
+        for (int i = 0; i < count; ++i) {
+            byte id = binaryIn.readByte();
+            stages[i] = REGISTRY.get(id);
+            if (null == stages[i])
+                throw new RuntimeException("Unknown stage id: " + id);
+        }
+        return new Pipeline(stages);
+    }
+
+    // transform the rest of the block, the result is only valid until the next call on this thread
+    ByteBuffer forward(CodecContext ctx, ByteBuffer block) {
+        if (isEmpty())
+            return block;
+
+        byte[] src = ctx.bytes(0, capacity);
+        int length = block.remaining();
+        block.get(src, 0, length);
+        for (Stage stage : stages) {
+            byte[] dst = other(ctx, src);
+            length = stage.forward(src, length, dst);
+            src = dst;
+        }
+        return ByteBuffer.wrap(src, 0, length);
+    }
+
+    // undo forward on the given scratch array of this thread
+    ByteBuffer inverse(CodecContext ctx, byte[] data, int length) {
+        byte[] src = data;
+        for (int i = stages.length - 1; i >= 0; --i) {
+            byte[] dst = other(ctx, src);
+            length = stages[i].inverse(src, length, dst);
+            src = dst;
+        }
+        return ByteBuffer.wrap(src, 0, length);
+    }
+
+    // the scratch array of this thread that is not src
+    private byte[] other(CodecContext ctx, byte[] src) {
+        byte[] first = ctx.bytes(0, capacity);
+        return src == first ? ctx.bytes(1, capacity) : first;
+    }
+
+    // measure the throughput of each built-in stage on text-like data
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        byte[] block = new byte[BLOCK_SIZE];
+        String[] words = {"huffman ", "block ", "stage ", "the ", "of ", "\n", "compress ", "aaaaaaaa "};
+        for (int i = 0; i < BLOCK_SIZE; ) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            for (int k = 0; k < word.length && i < BLOCK_SIZE; ++k) block[i++] = word[k];
+        }
+
+        CodecContext ctx = CodecContext.get();
+        int rounds = 200;
+        for (Stage stage : REGISTRY.values()) {
+            Pipeline pipeline = new Pipeline(stage);
+            int length = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                length = pipeline.forward(ctx, ByteBuffer.wrap(block)).remaining();
+            }
+            long forwardTime = System.nanoTime() - startTime;
+
+            ByteBuffer transformed = pipeline.forward(ctx, ByteBuffer.wrap(block));
+            byte[] copy = new byte[length];
+            transformed.get(copy);
+            startTime = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                byte[] data = ctx.bytes(0, pipeline.capacity());
+                System.arraycopy(copy, 0, data, 0, length);
+                pipeline.inverse(ctx, data, length);
+            }
+            long inverseTime = System.nanoTime() - startTime;
+
+            double megabytes = (double) rounds * BLOCK_SIZE / (1 << 20);
+            System.out.printf("%s: forward %.1f MB/s, inverse %.1f MB/s, %d -> %d bytes%n", stage.name(),
+                    megabytes / (forwardTime / 1e9), megabytes / (inverseTime / 1e9), BLOCK_SIZE, length);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package Kernel;
+
+// replace runs of 4 to 259 equal bytes with 4 of them and the number of remaining repeats
+public class RunLengthStage implements Stage {
+    public static final byte ID = 1;
+
+    private static final int MIN_RUN = 4;
+    private static final int MAX_RUN = MIN_RUN + 255;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "RLE";
+    }
+
+    @Override
+    public int maxLength(int length) {
+        // every 4 bytes may gain a count byte
+        return length + length / MIN_RUN;
+    }
+
+    @Override
+    public int forward(byte[] src, int length, byte[] dst) {
+        int j = 0;
+        for (int i = 0; i < length; ) {
+            byte b = src[i];
+            int run = 1;
+            while (i + run < length && src[i + run] == b && run < MAX_RUN) ++run;
+            i += run;
+
+            if (run >= MIN_RUN) {
+                for (int k = 0; k < MIN_RUN; ++k) dst[j++] = b;
+                dst[j++] = (byte) (run - MIN_RUN);
+            } else {
+                for (int k = 0; k < run; ++k) dst[j++] = b;
+            }
+        }
+        return j;
+    }
+
+    @Override
+    public int inverse(byte[] src, int length, byte[] dst) {
+        int j = 0;
+        int run = 0;
+        byte last = 0;
+        for (int i = 0; i < length; ) {
+            byte b = src[i++];
+            run = (run > 0 && b == last) ? run + 1 : 1;
+            last = b;
+            if (j == dst.length)
+                throw new IllegalStateException("Run exceeds block size");
+            dst[j++] = b;
+
+            if (run == MIN_RUN) {
+                if (i == length)
+                    throw new IllegalStateException("Missing run length");
+                int repeat = src[i++] & 0xff;
+                if (j + repeat > dst.length)
+                    throw new IllegalStateException("Run exceeds block size");
+                for (int k = 0; k < repeat; ++k) dst[j++] = b;
+                run = 0;
+            }
+        }
+        return j;
+    }
+}
@@ -0,0 +1,169 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// index at the end of an archive: for each file the offsets its payload, the code table it refers to and
+// its checkpoint blocks start at, so that Kernel.ArchiveReader can decode a range of a file from the nearest
+// checkpoint instead of from the first bit of the archive, offsets count from the start of the archive.
+// It is written as an int number of files, then for each the path (int length and UTF-8 bytes), long length,
+// long payload offset, long table offset, int interval, int number of checkpoints and their long offsets,
+// followed by the int CRC32C of all that, and the long offset of the index itself is the last thing in the archive
+final class SeekIndex {
+    // where a file is found in the archive
+    static final class Record {
+        long length;
+        long offset = -1;                   // first byte of the payload, -1 for an empty file
+        long table = -1;                    // reference to the new table a cached one refers to, -1 if none
+        int interval;                       // blocks between checkpoints, 0 if only the first one is recorded
+        long[] checkpoints = new long[1];   // first byte of block 0, interval, 2 * interval, ...
+        int count;
+
+        // block index starts at the given offset, record it if it is a checkpoint
+        void mark(long index, long offset) {
+            if (index != 0 && (interval == 0 || index % interval != 0))
+                return;
+            if (count == checkpoints.length)
+                checkpoints = Arrays.copyOf(checkpoints, 2 * count);
+            checkpoints[count++] = offset;
+        }
+    }
+
+    private final long base;    // size of the output when the archive started
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+    private final IdentityHashMap<Manifest.Entry, Record> files = new IdentityHashMap<>();
+
+    SeekIndex(long base) {
+        this.base = base;
+    }
+
+    // the record of a file compressed at the given path, to fill in while its payload is written
+    Record add(String path, Manifest.Entry file, long length, int interval) {
+        Record record = new Record();
+        record.length = length;
+        record.interval = interval;
+        records.put(path, record);
+        files.put(file, record);
+        return record;
+    }
+
+    // a link at the given path is found where the file it has the content of is
+    void link(String path, Manifest.Entry original) {
+        Record record = files.get(original);
+        if (null == record)
+            throw new IllegalStateException("Link to a file not in the index: " + path);
+        records.put(path, record);
+    }
+
+    Record get(String path) {
+        return records.get(path);
+    }
+
+    Iterable<String> paths() {
+        return records.keySet();
+    }
+
+    // offsets are written relative to the start of the archive
+    void write(BinaryOut binaryOut) {
+        long start = binaryOut.size() - base;
+
+        // the records go through a buffer first for their checksum
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        BinaryOut body = new BinaryOut(buffer);
+        body.write(records.size());
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            Record record = entry.getValue();
+            byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            body.write(bytes.length);
+            body.write(bytes);
+            body.write(record.length);
+            body.write(record.offset < 0 ? -1 : record.offset - base);
+            body.write(record.table < 0 ? -1 : record.table - base);
+            body.write(record.interval);
+            body.write(record.count);
+            for (int i = 0; i < record.count; ++i) {
+                body.write(record.checkpoints[i] - base);
+            }
+        }
+        body.flush();
+
+        byte[] bytes = buffer.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        binaryOut.write(bytes);
+        binaryOut.write((int) crc.getValue());
+        binaryOut.write(start);
+    }
+
+    // bytes write takes for a file of the given path and number of checkpoints
+    static long recordBytes(String path, long checkpoints) {
+        return Integer.BYTES + path.getBytes(StandardCharsets.UTF_8).length
+                + 3 * Long.BYTES + 2 * Integer.BYTES + checkpoints * Long.BYTES;
+    }
+
+    // number of checkpoints compress records for a file of the given length
+    static long checkpoints(long length, Options options) {
+        if (length == 0 || options.getInterval() > 0)
+            return 0;
+        long blocks = (length + Huffman.BLOCK_SIZE - 1) / Huffman.BLOCK_SIZE;
+        int interval = options.checkpointBlocks();
+        return interval == 0 ? 1 : (blocks - 1) / interval + 1;
+    }
+
+    // bytes write takes besides the records
+    static long headBytes() {
+        return 2 * Integer.BYTES + Long.BYTES;
+    }
+
+    // read an index written by write from the remaining bytes of the buffer, which end with its checksum
+    static SeekIndex read(ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES)
+            throw new IllegalStateException("Index truncated");
+        ByteBuffer body = buffer.slice();
+        body.limit(body.limit() - Integer.BYTES);
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - Integer.BYTES))
+            throw new IllegalStateException("Index checksum mismatch");
+
+        BinaryIn binaryIn = new BinaryIn(body);
+        SeekIndex index = new SeekIndex(0);
+        int files = binaryIn.readInt();
+        if (files < 0)
+            throw new IllegalStateException("Illegal number of indexed files: " + files);
+
+        for (int i = 0; i < files; ++i) {
+            int nameLength = binaryIn.readInt();
+            if (nameLength < 0)
+                throw new IllegalStateException("Illegal path length: " + nameLength);
+            byte[] bytes = new byte[nameLength];
+            for (int k = 0; k < nameLength; ++k) {
+                bytes[k] = binaryIn.readByte();
+            }
+
+            Record record = new Record();
+            record.length = binaryIn.readLong();
+            record.offset = binaryIn.readLong();
+            record.table = binaryIn.readLong();
+            record.interval = binaryIn.readInt();
+            record.count = binaryIn.readInt();
+            if (record.length < 0 || record.interval < 0 || record.count < 0)
+                throw new IllegalStateException("Malformed index record " + i);
+            record.checkpoints = new long[record.count];
+            for (int k = 0; k < record.count; ++k) {
+                record.checkpoints[k] = binaryIn.readLong();
+            }
+            index.records.put(new String(bytes, StandardCharsets.UTF_8), record);
+        }
+        return index;
+    }
+}
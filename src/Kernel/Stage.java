@@ -0,0 +1,18 @@
+package Kernel;
+
+// a reversible transform applied to each block before Kernel.Huffman coding
+public interface Stage {
+    // id recorded in the archive, unique among the stages known to Kernel.Pipeline
+    byte id();
+
+    String name();
+
+    // upper bound of the forward output length for an input of the given length
+    int maxLength(int length);
+
+    // transform length bytes of src into dst, return the number of bytes written
+    int forward(byte[] src, int length, byte[] dst);
+
+    // undo forward, return the number of bytes written to dst
+    int inverse(byte[] src, int length, byte[] dst);
+}
@@ -0,0 +1,156 @@
+package Kernel;
+
+import Util.BinaryIn;
+import Util.BinaryOut;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static Kernel.Huffman.R;
+
+// code tables shared by the payloads of an archive.
+// A payload brings a new trie into a slot, or refers to a cached table that codes its bytes almost as well.
+// The encoder finds candidates by a fingerprint of quantized frequencies and evicts the least recently used.
+// Tables are reserved from the Kernel.MemoryBudget; the encoder stops adding slots once they no longer fit.
+final class TableCache implements AutoCloseable {
+    // slots are written as one byte
+    static final int MAX_TABLES = 255;
+
+    static final byte NEW_TABLE = 0;
+    static final byte CACHED_TABLE = 1;
+
+    // frequencies are quantized to their code length in steps of QUANTUM bits,
+    // symbols with longer codes count as missing
+    private static final int QUANTUM = 3;
+    private static final int MAX_LENGTH = 12;
+
+    private final int capacity;
+    private final double maxPenalty;
+    private final CodeTable[] tables;
+    private final long[] origins;    // size of the output where each table was written
+    private long origin = -1;        // where the table of the last write was written, -1 if it came with it
+    private final MemoryBudget.Reservation reservation;     // null for a cache that holds no tables
+
+    // fingerprints to slots in access order, the eldest is evicted first
+    private final LinkedHashMap<Long, Integer> slots = new LinkedHashMap<>(16, 0.75f, true);
+
+    // a cache of capacity 0 gives every payload a table of its own,
+    // a cached table is reused while it costs at most maxPenalty more bits than a new one
+    TableCache(int capacity, double maxPenalty) {
+        if (capacity < 0 || capacity > MAX_TABLES)
+            throw new IllegalArgumentException("Illegal number of cached tables: " + capacity);
+        if (maxPenalty < 0)
+            throw new IllegalArgumentException("Illegal table penalty: " + maxPenalty);
+
+        this.capacity = capacity;
+        this.maxPenalty = maxPenalty;
+        tables = new CodeTable[capacity];
+        origins = new long[capacity];
+        reservation = capacity == 0 ? null : MemoryBudget.global().reserve(0);
+    }
+
+    // pick the table for the frequency counts of the given table and write the reference to it,
+    // followed by its trie if it is new
+    CodeTable write(CodeTable counted, BinaryOut binaryOut) {
+        if (capacity == 0) {
+            origin = -1;
+            counted.build();
+            writeNew(counted, 0, binaryOut);
+            return counted;
+        }
+
+        long[] freq = counted.freq;
+        long fingerprint = fingerprint(freq);
+        Integer slot = slots.get(fingerprint);
+
+        if (slot != null) {
+            // reuse the cached table unless a new one saves more than its own trie and the allowed penalty
+            counted.build();
+            long newBits = counted.cost(freq);
+            long cachedBits = tables[slot].cost(freq);
+            if (cachedBits <= newBits + counted.trieBits() + (long) (maxPenalty * newBits)) {
+                origin = origins[slot];
+                binaryOut.write(CACHED_TABLE);
+                binaryOut.write((byte) (int) slot);
+                return tables[slot];
+            }
+        } else if (slots.size() < capacity && (slots.isEmpty() || reservation.tryGrow(CodeTable.bytes(R)))) {
+            // the first table is always taken, the payload needs one anyway
+            if (slots.isEmpty())
+                reservation.grow(CodeTable.bytes(R));
+            slot = slots.size();
+            slots.put(fingerprint, slot);
+            tables[slot] = new CodeTable(R);
+        } else {
+            Iterator<Map.Entry<Long, Integer>> eldest = slots.entrySet().iterator();
+            slot = eldest.next().getValue();
+            eldest.remove();
+            slots.put(fingerprint, slot);
+        }
+
+        CodeTable table = tables[slot];
+        System.arraycopy(freq, 0, table.freq, 0, R);
+        table.build();
+        origin = -1;
+        origins[slot] = binaryOut.size();
+        writeNew(table, slot, binaryOut);
+        return table;
+    }
+
+    private static void writeNew(CodeTable table, int slot, BinaryOut binaryOut) {
+        binaryOut.write(NEW_TABLE);
+        binaryOut.write((byte) slot);
+        table.write(binaryOut);
+    }
+
+    // read the reference to a table, and its trie if it is new, new tables go into the scratch table
+    // when the cache holds none
+    CodeTable read(BinaryIn binaryIn, CodeTable scratch) {
+        byte kind = binaryIn.readByte();
+        int slot = binaryIn.readByte() & 0xff;
+        if (kind != NEW_TABLE && kind != CACHED_TABLE)
+            throw new IllegalStateException("Unknown table reference: " + kind);
+        if (capacity == 0 && kind == NEW_TABLE) {
+            scratch.read(binaryIn);
+            return scratch;
+        }
+        if (slot >= capacity)
+            throw new IllegalStateException("Illegal table slot: " + slot);
+
+        if (kind == NEW_TABLE) {
+            if (tables[slot] == null) {
+                reservation.grow(CodeTable.bytes(R));
+                tables[slot] = new CodeTable(R);
+            }
+            tables[slot].read(binaryIn);
+        } else if (tables[slot] == null)
+            throw new IllegalStateException("Reference to empty table slot: " + slot);
+        return tables[slot];
+    }
+
+    // size of the output where the new table the last write referred to was written, -1 if it wrote a new one
+    long getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public void close() {
+        if (reservation != null)
+            reservation.close();
+    }
+
+    // hash of the quantized frequencies, so that similar distributions collide
+    private static long fingerprint(long[] freq) {
+        long total = 0;
+        for (long f : freq) total += f;
+
+        long hash = 0xcbf29ce484222325L;
+        for (long f : freq) {
+            int length = f > 0 ? 64 - Long.numberOfLeadingZeros(total / f) : 0;
+            int quantum = length > MAX_LENGTH ? 0 : (length + QUANTUM - 1) / QUANTUM;
+            hash = (hash ^ quantum) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
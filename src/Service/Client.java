@@ -0,0 +1,94 @@
+package Service;
+
+import Constant.Constants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// connection to a Service.Daemon, requests on one connection are answered in order
+public class Client implements AutoCloseable {
+    // the daemon turned the request away because too many are in flight
+    public static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    // connect to the daemon on the Unix domain socket at the given path
+    public Client(Path socket) throws IOException {
+        this(SocketChannel.open(StandardProtocolFamily.UNIX), UnixDomainSocketAddress.of(socket));
+    }
+
+    // connect to the daemon on the loopback port
+    public Client(int port) throws IOException {
+        this(SocketChannel.open(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    private Client(SocketChannel channel, SocketAddress address) throws IOException {
+        this.channel = channel;
+        channel.connect(address);
+        in = new DataInputStream(Channels.newInputStream(channel));
+        out = new DataOutputStream(Channels.newOutputStream(channel));
+    }
+
+    public byte[] compress(byte[] data, int level) throws IOException {
+        return request(Constants.OP_COMPRESS, level, data);
+    }
+
+    public byte[] expand(byte[] data) throws IOException {
+        return request(Constants.OP_EXPAND, 0, data);
+    }
+
+    public String stats() throws IOException {
+        return new String(request(Constants.OP_STATS, 0, new byte[0]), StandardCharsets.UTF_8);
+    }
+
+    private byte[] request(byte op, int level, byte[] data) throws IOException {
+        out.writeByte(op);
+        out.writeByte(level);
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+
+        byte status = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        if (status == Constants.STATUS_BUSY)
+            throw new BusyException(new String(payload, StandardCharsets.UTF_8));
+        if (status != Constants.STATUS_OK)
+            throw new IOException(new String(payload, StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // round trip a message through a daemon listening on the default port
+    public static void main(String[] args) throws IOException {
+        byte[] data = "hello, world! hello, world! hello, world!".getBytes(StandardCharsets.UTF_8);
+        try (Client client = new Client(Constants.DAEMON_PORT)) {
+            byte[] compressed = client.compress(data, 6);
+            byte[] expanded = client.expand(compressed);
+            System.out.println(data.length + " -> " + compressed.length + " -> " + new String(expanded, StandardCharsets.UTF_8));
+            System.out.println(client.stats());
+        }
+    }
+}
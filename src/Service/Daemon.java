@@ -0,0 +1,386 @@
+package Service;
+
+import Constant.Constants;
+import Kernel.Huffman;
+import Kernel.MemoryBudget;
+import Kernel.Options;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Long-running local compression service. Every connection is served on a virtual thread when the JVM has them,
+// the coding itself runs on a few coder threads whose codec buffers and tables stay warm from one request
+// to the next.
+//
+// A request is an op byte, a level byte and an int length followed by the payload, a response is a status byte
+// and an int length followed by the result or an error message. Payloads are bare Kernel.Huffman payloads.
+public class Daemon implements AutoCloseable {
+    // a request waiting for a coder
+    private static final class Job {
+        final byte op;
+        final int level;
+        final byte[] input;
+        final long outputLength;                    // -1 if not known ahead
+        final MemoryBudget.Reservation reservation; // holds the input and the output
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+
+        Job(byte op, int level, byte[] input, long outputLength, MemoryBudget.Reservation reservation) {
+            this.op = op;
+            this.level = level;
+            this.input = input;
+            this.outputLength = outputLength;
+            this.reservation = reservation;
+        }
+    }
+
+    // the output of a request outgrew what is left of the memory budget
+    private static final class OutOfBudgetException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfBudgetException() {
+            super("Out of memory budget");
+        }
+    }
+
+    // output of a payload whose length is not known ahead, reserved from the budget as it grows
+    // and never past the largest payload
+    private static final class BoundedOutput extends ByteArrayOutputStream {
+        private final MemoryBudget.Reservation reservation;
+        private long reserved;
+
+        BoundedOutput(MemoryBudget.Reservation reservation) {
+            this.reservation = reservation;
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            super.write(b, off, len);
+        }
+
+        // the array grows by doubling and is copied once more for the response
+        private void ensure(int len) {
+            long needed = count + (long) len;
+            if (needed > Constants.DAEMON_MAX_PAYLOAD)
+                throw new IllegalArgumentException("Expanded payload too large: " + needed);
+            if (2 * needed <= reserved)
+                return;
+
+            long more = Math.max(2 * needed, 2 * reserved) - reserved;
+            if (!reservation.tryGrow(more))
+                throw new OutOfBudgetException();
+            reserved += more;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Path socket;
+    private final ExecutorService connections;
+    private final ArrayList<Thread> coders = new ArrayList<>();
+    private final LinkedBlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean closed;
+
+    // listen on a Unix domain socket at the given path, or on the loopback port when the path is null
+    public Daemon(Path socket, int port, int coderCount, int maxInFlight) throws IOException {
+        if (coderCount < 1)
+            throw new IllegalArgumentException("Illegal number of coders: " + coderCount);
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("Illegal in-flight limit: " + maxInFlight);
+
+        this.socket = socket;
+        if (socket != null) {
+            // only a stale socket is removed, the daemon does not start over anything else at the path
+            if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+                if (!Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther())
+                    throw new IllegalArgumentException("Not a socket: " + socket);
+                Files.delete(socket);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socket));
+        } else {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+        connections = connectionExecutor();
+
+        for (int i = 0; i < coderCount; ++i) {
+            Thread coder = new Thread(this::code, "huffman-coder-" + i);
+            coder.setDaemon(true);
+            coder.start();
+            coders.add(coder);
+        }
+    }
+
+    // one virtual thread per connection when the JVM supports them (Java 21), pooled platform threads otherwise
+    private static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "huffman-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // accept connections until closed
+    public void serve() throws IOException {
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (closed) return;
+                throw e;
+            }
+            connections.submit(() -> handle(channel));
+        }
+    }
+
+    // serve the requests of a connection one after the other until the client hangs up
+    private void handle(SocketChannel channel) {
+        try (DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+             DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int level = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > Constants.DAEMON_MAX_PAYLOAD) {
+                    respond(out, Constants.STATUS_ERROR, error("Illegal payload length: " + length));
+                    return;
+                }
+                if (op == Constants.OP_STATS) {
+                    in.skipNBytes(length);
+                    respond(out, Constants.STATUS_OK, ByteBuffer.wrap(stats().getBytes(StandardCharsets.UTF_8)));
+                    continue;
+                }
+
+                // the payload must fit in the memory budget before it is even read,
+                // and its result once the size of that is known
+                MemoryBudget.Reservation reservation = MemoryBudget.global().tryReserve(length);
+                if (reservation == null) {
+                    in.skipNBytes(length);
+                    rejected.incrementAndGet();
+                    respond(out, Constants.STATUS_BUSY, error("Out of memory budget"));
+                    continue;
+                }
+                try {
+                    byte[] input = new byte[length];
+                    in.readFully(input);
+
+                    long outputLength;
+                    try {
+                        outputLength = outputLength(op, input);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        respond(out, Constants.STATUS_ERROR, error(String.valueOf(e)));
+                        continue;
+                    }
+                    if (outputLength > 0 && !reservation.tryGrow(outputLength)) {
+                        rejected.incrementAndGet();
+                        respond(out, Constants.STATUS_BUSY, error("Out of memory budget"));
+                        continue;
+                    }
+
+                    long startTime = System.nanoTime();
+                    if (!inFlight.tryAcquire()) {
+                        rejected.incrementAndGet();
+                        respond(out, Constants.STATUS_BUSY, error("Too many requests in flight"));
+                        continue;
+                    }
+
+                    byte status = Constants.STATUS_OK;
+                    ByteBuffer output;
+                    try {
+                        Job job = new Job(op, level, input, outputLength, reservation);
+                        queue.add(job);
+                        output = job.result.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof OutOfBudgetException) {
+                            rejected.incrementAndGet();
+                            status = Constants.STATUS_BUSY;
+                            output = error(e.getCause().getMessage());
+                        } else {
+                            failed.incrementAndGet();
+                            status = Constants.STATUS_ERROR;
+                            output = error(String.valueOf(e.getCause()));
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                    latency.record((System.nanoTime() - startTime) / 1000);
+                    respond(out, status, output);
+                } finally {
+                    reservation.close();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the client went away, nothing to answer
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the client is gone either way
+            }
+        }
+    }
+
+    private static ByteBuffer error(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the remaining bytes of the payload, straight from the array the coder wrote them to
+    private static void respond(DataOutputStream out, byte status, ByteBuffer payload) throws IOException {
+        out.writeByte(status);
+        out.writeInt(payload.remaining());
+        out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        out.flush();
+    }
+
+    // coder thread: run queued requests one after the other on this thread's codec context
+    private void code() {
+        while (!closed) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                job.result.complete(run(job));
+            } catch (RuntimeException e) {
+                job.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // number of bytes the result of a request takes at most, read from the header of a payload to expand,
+    // -1 for a payload of the adaptive coder which does not record it
+    private static long outputLength(byte op, byte[] input) {
+        if (op == Constants.OP_COMPRESS)
+            return Huffman.maxCompressedLength(input.length);
+        if (op != Constants.OP_EXPAND)
+            throw new IllegalArgumentException("Unknown op: " + op);
+
+        long expanded = Huffman.expandedLength(ByteBuffer.wrap(input));
+        if (expanded > Constants.DAEMON_MAX_PAYLOAD)
+            throw new IllegalArgumentException("Expanded payload too large: " + expanded);
+        return expanded;
+    }
+
+    // code the request in memory into an output allocated once at the size reserved for it,
+    // only a payload of the adaptive coder, whose length is not known ahead, is expanded through a stream
+    private static ByteBuffer run(Job job) {
+        byte[] output;
+        int length;
+        if (job.op == Constants.OP_COMPRESS) {
+            output = new byte[(int) job.outputLength];
+            length = Huffman.compress(job.input, 0, job.input.length, output, 0, new Options().level(job.level));
+        } else if (job.outputLength < 0) {
+            BoundedOutput stream = new BoundedOutput(job.reservation);
+            Huffman.expand(new ByteArrayInputStream(job.input), stream);
+            return ByteBuffer.wrap(stream.toByteArray());
+        } else {
+            output = new byte[(int) job.outputLength];
+            length = Huffman.expand(job.input, 0, job.input.length, output, 0);
+        }
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    public String stats() {
+        return "requests: " + latency.count()
+                + ", rejected: " + rejected.get()
+                + ", failed: " + failed.get()
+                + ", in flight: " + (maxInFlight - inFlight.availablePermits())
+                + ", reserved: " + MemoryBudget.global().getReserved() + "B"
+                + ", p50: " + latency.percentile(0.50) + "us"
+                + ", p90: " + latency.percentile(0.90) + "us"
+                + ", p99: " + latency.percentile(0.99) + "us"
+                + ", p99.9: " + latency.percentile(0.999) + "us"
+                + ", max: " + latency.max() + "us";
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        if (socket != null)
+            Files.deleteIfExists(socket);
+        connections.shutdownNow();
+        for (Thread coder : coders) {
+            coder.interrupt();
+        }
+    }
+
+    // usage: Daemon [--socket path | --port n] [--coders n] [--max-in-flight n]
+    public static void main(String[] args) throws IOException {
+        Path socket = null;
+        int port = Constants.DAEMON_PORT;
+        int coderCount = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = Constants.DAEMON_MAX_IN_FLIGHT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--socket": socket = Paths.get(args[i + 1]); break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--coders": coderCount = Integer.parseInt(args[i + 1]); break;
+                case "--max-in-flight": maxInFlight = Integer.parseInt(args[i + 1]); break;
+                case "--memory": MemoryBudget.global().setLimit(Long.parseLong(args[i + 1])); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        try (Daemon daemon = new Daemon(socket, port, coderCount, maxInFlight)) {
+            System.out.println("listening on " + (socket != null ? socket : "port " + port));
+            daemon.serve();
+        }
+    }
+}
@@ -1,47 +1,54 @@
 package Util;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.NoSuchElementException;
 
 public final class BinaryIn {
     private static final int EOF = -1;   // end of file
+    private static final int BUFFER_SIZE = 8192;
 
-    private BufferedInputStream in;      // the input stream
+    private ReadableByteChannel in;      // the input channel
+    private ByteBuffer bytes;            // bytes read from the channel but not consumed yet
     private int buffer;                  // one character buffer
     private int n;                       // number of bits left in buffer
 
     public BinaryIn(InputStream is) {
-        in = new BufferedInputStream(is);
+        this(Channels.newChannel(is), ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    // read through a caller supplied buffer, so that it can be reused across streams
+    public BinaryIn(ReadableByteChannel channel, ByteBuffer bytes) {
+        in = channel;
+        this.bytes = bytes;
+        bytes.clear();
+        bytes.flip();
         fillBuffer();
     }
 
-    public BinaryIn(String fileName) {
+    // read the remaining bytes of the buffer in place
+    public BinaryIn(ByteBuffer bytes) {
+        this.bytes = bytes;
+        fillBuffer();
+    }
 
-        try {
-            // first try to read file from local file system
-            File file = new File(fileName);
-            if (file.exists()) {
-                FileInputStream fis = new FileInputStream(file);
-                in = new BufferedInputStream(fis);
-                fillBuffer();
-            }
-        }
-        catch (IOException ioe) {
-            System.err.println("Could not open " + fileName);
-        }
+    public BinaryIn(String fileName) {
+        this(new File(fileName));
     }
 
     public BinaryIn(File file) {
 
         try {
             if (file.exists()) {
-                FileInputStream fis = new FileInputStream(file);
-                in = new BufferedInputStream(fis);
+                in = FileChannel.open(file.toPath());
+                bytes = ByteBuffer.allocate(BUFFER_SIZE);
+                bytes.flip();
                 fillBuffer();
             }
         }
@@ -50,9 +57,23 @@ public final class BinaryIn {
         }
     }
 
+    private int readByteFromChannel() throws IOException {
+        if (!bytes.hasRemaining()) {
+            if (in == null) return EOF;
+            bytes.clear();
+            int count;
+            do {
+                count = in.read(bytes);
+            } while (count == 0);
+            bytes.flip();
+            if (count < 0) return EOF;
+        }
+        return bytes.get() & 0xff;
+    }
+
     private void fillBuffer() {
         try {
-            buffer = in.read();
+            buffer = readByteFromChannel();
             n = 8;
         }
         catch (IOException e) {
@@ -63,7 +84,7 @@ public final class BinaryIn {
     }
 
     public boolean exists()  {
-        return in != null;
+        return bytes != null;
     }
 
     public boolean isEmpty() {
@@ -122,11 +143,50 @@ public final class BinaryIn {
         return x;
     }
 
+    // Reads the next r bits from the binary input stream and return as an r-bit int.
+    public int readInt(int r) {
+        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value of r = " + r);
+        if (r == 32) return readInt();
+
+        int x = 0;
+        for (int i = 0; i < r; i++) {
+            x <<= 1;
+            if (readBoolean()) x |= 1;
+        }
+        return x;
+    }
+
+    public long readLong() {
+        long x = readInt();
+        return (x << 32) | (readInt() & 0xffffffffL);
+    }
+
+    // skip the rest bits of the current byte, so that the next read starts on a byte boundary
+    public void align() {
+        if (n != 8 && !isEmpty()) fillBuffer();
+    }
+
+    // number of whole bytes not read yet from a buffer read in place, a byte read in part counts as read
+    public int remaining() {
+        if (in != null)
+            throw new IllegalStateException("Remaining bytes of a channel are not known");
+        return bytes.remaining() + (!isEmpty() && n == 8 ? 1 : 0);
+    }
+
     public byte readByte() {
         char c = readChar();
         return (byte) (c & 0xff);
     }
 
+    public void close() {
+        try {
+            if (in != null) in.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) {
         byte[] bytes = {'a', 'b', 'c'};
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
@@ -1,43 +1,75 @@
 package Util;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 public final class BinaryOut {
+    private static final int BUFFER_SIZE = 8192;
 
-    private BufferedOutputStream out;  // the output stream
+    private WritableByteChannel out;   // the output channel
+    private ByteBuffer bytes;          // bytes waiting to be written to the channel
     private int buffer;                // 8-bit buffer of bits to write out
     private int n;                     // number of bits remaining in buffer
+    private long drained;              // bytes handed over to the channel, minus the start of an in place buffer
 
     public BinaryOut(OutputStream os) {
-        out = new BufferedOutputStream(os);
+        this(Channels.newChannel(os), ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    // write through a caller supplied buffer, so that it can be reused across streams
+    public BinaryOut(WritableByteChannel channel, ByteBuffer bytes) {
+        out = channel;
+        this.bytes = bytes;
+        bytes.clear();
+    }
+
+    // write in place into the remaining bytes of the buffer, running out of them throws BufferOverflowException
+    public BinaryOut(ByteBuffer bytes) {
+        this.bytes = bytes;
+        drained = -bytes.position();
     }
 
     public BinaryOut(String filename) {
-        try {
-            OutputStream os = new FileOutputStream(filename);
-            out = new BufferedOutputStream(os);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        this(new File(filename));
     }
 
     public BinaryOut(File file) {
         try {
-            OutputStream os = new FileOutputStream(file);
-            out = new BufferedOutputStream(os);
+            out = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            bytes = ByteBuffer.allocate(BUFFER_SIZE);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void writeByteToChannel(int x) throws IOException {
+        if (!bytes.hasRemaining()) drain();
+        bytes.put((byte) x);
+    }
+
+    // hand all buffered bytes over to the channel, in place the buffer is full and there is no channel
+    private void drain() throws IOException {
+        if (out == null)
+            throw new BufferOverflowException();
+        bytes.flip();
+        drained += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        bytes.clear();
+    }
+
     private void writeBit(boolean x) {
         // add bit to buffer
         buffer <<= 1;
@@ -54,7 +86,7 @@ public final class BinaryOut {
         // optimized if byte-aligned
         if (n == 0) {
             try {
-                out.write(x);
+                writeByteToChannel(x);
             }
             catch (IOException e) {
                 e.printStackTrace();
@@ -74,7 +106,7 @@ public final class BinaryOut {
         if (n == 0) return;
         if (n > 0) buffer <<= (8 - n);
         try {
-            out.write(buffer);
+            writeByteToChannel(buffer);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -85,8 +117,9 @@ public final class BinaryOut {
 
     public void flush() {
         clearBuffer();
+        if (out == null) return;
         try {
-            out.flush();
+            drain();
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -95,6 +128,7 @@ public final class BinaryOut {
 
     public void close() {
         flush();
+        if (out == null) return;
         try {
             out.close();
         }
@@ -132,6 +166,29 @@ public final class BinaryOut {
         }
     }
 
+    public void write(long x) {
+        write((int) (x >>> 32));
+        write((int) x);
+    }
+
+    // pad the current byte with 0s, so that the next write starts on a byte boundary
+    public void align() {
+        clearBuffer();
+    }
+
+    // Writes the r least significant bits of x, at most 64, to the binary output stream.
+    public void write(long x, int r) {
+        if (r < 1 || r > 64) throw new IllegalArgumentException("Illegal value for r = " + r);
+        while (r > 0) {
+            // move as many bits as the 8-bit buffer can take at once
+            int k = Math.min(r, 8 - n);
+            r -= k;
+            buffer = (buffer << k) | (int) ((x >>> r) & ((1 << k) - 1));
+            n += k;
+            if (n == 8) clearBuffer();
+        }
+    }
+
     public void write(char x) {
         if (x < 0 || x >= 256) throw new IllegalArgumentException("Illegal 8-bit char = " + x);
         writeByte(x);
@@ -152,8 +209,46 @@ public final class BinaryOut {
     }
 
     public void write(byte[] bytes) {
-        for (byte b : bytes) {
-            write(b);
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        // optimized if byte-aligned
+        if (n == 0) {
+            try {
+                while (length > 0) {
+                    if (!this.bytes.hasRemaining()) drain();
+                    int count = Math.min(length, this.bytes.remaining());
+                    this.bytes.put(bytes, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        for (int i = offset; i < offset + length; ++i) {
+            write(bytes[i]);
+        }
+    }
+
+    // number of whole bytes written so far, the bits of a partial byte are not counted
+    public long size() {
+        return drained + bytes.position();
+    }
+
+    // write the remaining bytes of the buffer
+    public void write(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            write(buffer.get());
         }
     }
 
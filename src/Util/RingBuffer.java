@@ -0,0 +1,88 @@
+package Util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// bounded lock-free queue for any number of producers and consumers,
+// each cell carries a sequence number telling whether it is ready to be written or read
+public final class RingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();    // next position to offer to
+    private final AtomicLong head = new AtomicLong();    // next position to poll from
+
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+
+        // round up to a power of 2, so that positions map to cells with a mask
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        mask = size - 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+    }
+
+    // add the item unless the buffer is full
+    public boolean offer(T item) {
+        if (null == item)
+            throw new IllegalArgumentException("Null item for ring buffer");
+
+        long position = tail.get();
+        while (true) {
+            int cell = (int) position & mask;
+            long difference = sequences.get(cell) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.lazySet(cell, item);
+                    sequences.lazySet(cell, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // remove the oldest item, null if the buffer is empty
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int cell = (int) position & mask;
+            long difference = sequences.get(cell) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T item = items.get(cell);
+                    items.lazySet(cell, null);
+                    sequences.lazySet(cell, position + mask + 1);
+                    return item;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    // back off after the given number of failed attempts: spin first, then yield, then sleep briefly
+    public static void idle(int attempts) {
+        if (attempts < 64)
+            Thread.onSpinWait();
+        else if (attempts < 128)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(50_000);
+    }
+}